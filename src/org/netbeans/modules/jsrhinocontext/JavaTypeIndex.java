@@ -0,0 +1,463 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import javax.lang.model.element.TypeElement;
+import org.netbeans.api.java.classpath.ClassPath;
+import org.netbeans.api.java.source.ClassIndex;
+import org.netbeans.api.java.source.ClassIndexListener;
+import org.netbeans.api.java.source.ClasspathInfo;
+import org.netbeans.api.java.source.ElementHandle;
+import org.netbeans.api.java.source.RootsEvent;
+import org.netbeans.api.java.source.TypesEvent;
+import org.netbeans.spi.java.classpath.support.ClassPathSupport;
+import org.openide.util.RequestProcessor;
+import org.openide.util.WeakListeners;
+
+/**
+ * The names of the Java types available on a set of classpaths, shared by all
+ * the documents using the same classpaths. The index follows the changes of
+ * the classpaths one root at a time: only the roots that were added or
+ * removed are scanned or dropped, and the types of the source roots are kept
+ * up to date through the class index events.
+ * @author Adriano
+ */
+public final class JavaTypeIndex {
+
+    private static final RequestProcessor RP = new RequestProcessor(JavaTypeIndex.class.getName(), 1);
+
+    /**
+     * The live indexes, by BOOT, COMPILE and SOURCE classpath
+     */
+    private static final Map<List<ClassPath>, Reference<JavaTypeIndex>> INDEXES =
+            new HashMap<List<ClassPath>, Reference<JavaTypeIndex>>();
+
+    /**
+     * The type names of the binary roots scanned so far, shared by all indexes
+     */
+    private static final Map<URL, Reference<Set<String>>> BINARY_ROOTS =
+            new HashMap<URL, Reference<Set<String>>>();
+
+    private final ClassPath bootCp;
+
+    private final ClassPath compileCp;
+
+    private final ClassPath sourceCp;
+
+    /**
+     * Each type name, with the number of indexed roots declaring it
+     */
+    private final ConcurrentSkipListMap<String, Integer> names =
+            new ConcurrentSkipListMap<String, Integer>();
+
+    /**
+     * The qualified names of the types, sorted, by simple name and by nested
+     * type suffix, like <code>Entry</code> and <code>Map.Entry</code> for
+     * <code>java.util.Map.Entry</code>
+     */
+    private final ConcurrentHashMap<String, String[]> bySuffix =
+            new ConcurrentHashMap<String, String[]>();
+
+    /**
+     * The binary roots currently contributing to the index, with their type names
+     */
+    private final Map<URL, Set<String>> binaryRoots = new HashMap<URL, Set<String>>();
+
+    /**
+     * The type names currently contributed by the source roots
+     */
+    private Set<String> sourceNames = Collections.emptySet();
+
+    private ClassIndex sourceIndex;
+
+    private ClassIndexListener weakSourceListener;
+
+    private boolean initialized;
+
+    private final PropertyChangeListener classPathListener = new PropertyChangeListener() {
+
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            if (ClassPath.PROP_ENTRIES.equals(evt.getPropertyName())) {
+                final boolean sources = evt.getSource() == sourceCp;
+                RP.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (sources) {
+                            refreshSources();
+                        } else {
+                            refreshBinaryRoots();
+                        }
+                    }
+                });
+            }
+        }
+    };
+
+    private final ClassIndexListener sourceListener = new ClassIndexListener() {
+
+        @Override
+        public void typesAdded(TypesEvent event) {
+            synchronized (JavaTypeIndex.this) {
+                Set<String> current = new HashSet<String>(sourceNames);
+                List<String> added = new ArrayList<String>();
+                for (ElementHandle<TypeElement> handle : event.getTypes()) {
+                    if (current.add(handle.getQualifiedName())) {
+                        added.add(handle.getQualifiedName());
+                    }
+                }
+                addAll(added);
+                sourceNames = current;
+            }
+        }
+
+        @Override
+        public void typesRemoved(TypesEvent event) {
+            synchronized (JavaTypeIndex.this) {
+                Set<String> current = new HashSet<String>(sourceNames);
+                List<String> removed = new ArrayList<String>();
+                for (ElementHandle<TypeElement> handle : event.getTypes()) {
+                    if (current.remove(handle.getQualifiedName())) {
+                        removed.add(handle.getQualifiedName());
+                    }
+                }
+                removeAll(removed);
+                sourceNames = current;
+            }
+        }
+
+        @Override
+        public void typesChanged(TypesEvent event) {
+        }
+
+        @Override
+        public void rootsAdded(RootsEvent event) {
+        }
+
+        @Override
+        public void rootsRemoved(RootsEvent event) {
+        }
+    };
+
+    private JavaTypeIndex(ClassPath bootCp, ClassPath compileCp, ClassPath sourceCp) {
+        this.bootCp = bootCp;
+        this.compileCp = compileCp;
+        this.sourceCp = sourceCp;
+        for (ClassPath cp : new ClassPath[] {bootCp, compileCp, sourceCp}) {
+            if (cp != null) {
+                cp.addPropertyChangeListener(WeakListeners.propertyChange(classPathListener, cp));
+            }
+        }
+    }
+
+    /**
+     * Get the index shared by all the documents with the given classpaths
+     * @param bootCp The BOOT classpath, or null
+     * @param compileCp The COMPILE classpath, or null
+     * @param sourceCp The SOURCE classpath, or null
+     * @return The type index of the classpaths. It is filled on first use
+     */
+    public static JavaTypeIndex get(ClassPath bootCp, ClassPath compileCp, ClassPath sourceCp) {
+        List<ClassPath> key = Arrays.asList(bootCp, compileCp, sourceCp);
+        synchronized (INDEXES) {
+            for (Iterator<Reference<JavaTypeIndex>> it = INDEXES.values().iterator(); it.hasNext();) {
+                if (it.next().get() == null) {
+                    it.remove();
+                }
+            }
+            Reference<JavaTypeIndex> ref = INDEXES.get(key);
+            JavaTypeIndex index = ref == null ? null : ref.get();
+            if (index == null) {
+                index = new JavaTypeIndex(bootCp, compileCp, sourceCp);
+                INDEXES.put(key, new WeakReference<JavaTypeIndex>(index));
+            }
+            return index;
+        }
+    }
+
+    /**
+     * @return The fully qualified names of the available classes and
+     * interfaces, sorted. The set is a live view of the index
+     */
+    public SortedSet<String> getNames() {
+        ensureInitialized();
+        return names.keySet();
+    }
+
+    /**
+     * Resolve a simple name, a nested type suffix like <code>Map.Entry</code>
+     * or any dot separated tail of a qualified name
+     * @param name The name to resolve
+     * @return The qualified names ending with the given name, sorted
+     * alphabetically, or an empty list
+     */
+    public List<String> getQualifiedNames(String name) {
+        ensureInitialized();
+        String[] found = bySuffix.get(name);
+        if (found != null) {
+            return Arrays.asList(found);
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || (found = bySuffix.get(name.substring(dot + 1))) == null) {
+            return Collections.emptyList();
+        }
+        // A tail that does not start with a type name, like awt.Rectangle
+        List<String> filtered = new ArrayList<String>();
+        for (String candidate : found) {
+            if (candidate.endsWith("." + name)) {
+                filtered.add(candidate);
+            }
+        }
+        return filtered;
+    }
+
+    private synchronized void ensureInitialized() {
+        if (!initialized) {
+            initialized = true;
+            refreshBinaryRoots();
+            refreshSources();
+        }
+    }
+
+    /**
+     * Scan the binary roots added to the BOOT and COMPILE classpaths since the
+     * last refresh, and drop the names of the removed ones
+     */
+    private synchronized void refreshBinaryRoots() {
+        if (!initialized) {
+            return;
+        }
+        Set<URL> roots = new LinkedHashSet<URL>();
+        roots.addAll(getRoots(bootCp));
+        roots.addAll(getRoots(compileCp));
+        List<String> removed = new ArrayList<String>();
+        for (Iterator<Map.Entry<URL, Set<String>>> it = binaryRoots.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<URL, Set<String>> entry = it.next();
+            if (!roots.contains(entry.getKey())) {
+                removed.addAll(entry.getValue());
+                it.remove();
+            }
+        }
+        removeAll(removed);
+        List<String> added = new ArrayList<String>();
+        for (URL root : roots) {
+            if (!binaryRoots.containsKey(root)) {
+                Set<String> rootNames = getBinaryRootNames(root);
+                added.addAll(rootNames);
+                binaryRoots.put(root, rootNames);
+            }
+        }
+        addAll(added);
+    }
+
+    /**
+     * Scan the source roots again, and start listening to the class index
+     * of the current ones
+     */
+    private synchronized void refreshSources() {
+        if (!initialized) {
+            return;
+        }
+        if (sourceIndex != null) {
+            sourceIndex.removeClassIndexListener(weakSourceListener);
+            sourceIndex = null;
+        }
+        Set<String> scanned = Collections.emptySet();
+        if (sourceCp != null && !sourceCp.entries().isEmpty()) {
+            sourceIndex = ClasspathInfo.create(ClassPath.EMPTY, ClassPath.EMPTY, sourceCp).getClassIndex();
+            weakSourceListener = WeakListeners.create(ClassIndexListener.class, sourceListener, sourceIndex);
+            sourceIndex.addClassIndexListener(weakSourceListener);
+            scanned = scan(sourceIndex, ClassIndex.SearchScope.SOURCE);
+        }
+        List<String> removed = new ArrayList<String>();
+        for (String name : sourceNames) {
+            if (!scanned.contains(name)) {
+                removed.add(name);
+            }
+        }
+        removeAll(removed);
+        List<String> added = new ArrayList<String>();
+        for (String name : scanned) {
+            if (!sourceNames.contains(name)) {
+                added.add(name);
+            }
+        }
+        addAll(added);
+        sourceNames = scanned;
+    }
+
+    /**
+     * @param root A binary root
+     * @return The names of the types declared in the root, scanned only when no
+     * other index did it before
+     */
+    private static Set<String> getBinaryRootNames(URL root) {
+        synchronized (BINARY_ROOTS) {
+            Reference<Set<String>> ref = BINARY_ROOTS.get(root);
+            Set<String> rootNames = ref == null ? null : ref.get();
+            if (rootNames == null) {
+                ClassPath rootCp = ClassPathSupport.createClassPath(root);
+                ClasspathInfo info = ClasspathInfo.create(ClassPath.EMPTY, rootCp, ClassPath.EMPTY);
+                rootNames = scan(info.getClassIndex(), ClassIndex.SearchScope.DEPENDENCIES);
+                BINARY_ROOTS.put(root, new SoftReference<Set<String>>(rootNames));
+            }
+            return rootNames;
+        }
+    }
+
+    private static Set<String> scan(ClassIndex index, ClassIndex.SearchScope scope) {
+        Set<ElementHandle<TypeElement>> entities = index.getDeclaredTypes("",
+                ClassIndex.NameKind.PREFIX, EnumSet.of(scope));
+        Set<String> scanned = new HashSet<String>(entities.size() * 2);
+        for (ElementHandle<TypeElement> ntt : entities) {
+            scanned.add(ntt.getQualifiedName());
+        }
+        return Collections.unmodifiableSet(scanned);
+    }
+
+    private static Set<URL> getRoots(ClassPath cp) {
+        Set<URL> roots = new LinkedHashSet<URL>();
+        if (cp != null) {
+            for (ClassPath.Entry entry : cp.entries()) {
+                roots.add(entry.getURL());
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Count a batch of type names, and index the ones that are new by their
+     * suffixes. Each suffix array is merged and sorted once per batch
+     * @param added The names, once per root declaring them
+     */
+    private void addAll(Collection<String> added) {
+        Map<String, List<String>> grown = new HashMap<String, List<String>>();
+        for (String name : added) {
+            Integer count = names.get(name);
+            names.put(name, count == null ? 1 : count + 1);
+            if (count == null) {
+                for (String suffix : getSuffixes(name)) {
+                    List<String> suffixNames = grown.get(suffix);
+                    if (suffixNames == null) {
+                        suffixNames = new ArrayList<String>();
+                        grown.put(suffix, suffixNames);
+                    }
+                    suffixNames.add(name);
+                }
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : grown.entrySet()) {
+            String[] found = bySuffix.get(entry.getKey());
+            List<String> suffixNames = entry.getValue();
+            int length = found == null ? 0 : found.length;
+            String[] merged = new String[length + suffixNames.size()];
+            if (found != null) {
+                System.arraycopy(found, 0, merged, 0, length);
+            }
+            for (int i = 0; i < suffixNames.size(); i++) {
+                merged[length + i] = suffixNames.get(i);
+            }
+            Arrays.sort(merged);
+            bySuffix.put(entry.getKey(), merged);
+        }
+    }
+
+    /**
+     * Uncount a batch of type names, and drop the ones no root declares
+     * anymore from their suffixes. Each suffix array is shrunk in one pass
+     * @param removed The names, once per root that declared them
+     */
+    private void removeAll(Collection<String> removed) {
+        Map<String, Set<String>> shrunk = new HashMap<String, Set<String>>();
+        for (String name : removed) {
+            Integer count = names.get(name);
+            if (count == null) {
+                continue;
+            }
+            if (count > 1) {
+                names.put(name, count - 1);
+                continue;
+            }
+            names.remove(name);
+            for (String suffix : getSuffixes(name)) {
+                Set<String> suffixNames = shrunk.get(suffix);
+                if (suffixNames == null) {
+                    suffixNames = new HashSet<String>();
+                    shrunk.put(suffix, suffixNames);
+                }
+                suffixNames.add(name);
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : shrunk.entrySet()) {
+            String[] found = bySuffix.get(entry.getKey());
+            if (found == null) {
+                continue;
+            }
+            String[] kept = new String[found.length];
+            int length = 0;
+            for (String name : found) {
+                if (!entry.getValue().contains(name)) {
+                    kept[length++] = name;
+                }
+            }
+            if (length == 0) {
+                bySuffix.remove(entry.getKey());
+            } else {
+                bySuffix.put(entry.getKey(), Arrays.copyOf(kept, length));
+            }
+        }
+    }
+
+    /**
+     * @param name A qualified type name
+     * @return The simple name of the type, and the tails of the name that
+     * start with an enclosing type name
+     */
+    static List<String> getSuffixes(String name) {
+        List<String> suffixes = new ArrayList<String>(2);
+        int dot = name.lastIndexOf('.');
+        suffixes.add(name.substring(dot + 1));
+        while (dot > 0) {
+            int start = name.lastIndexOf('.', dot - 1);
+            if (!Character.isUpperCase(name.charAt(start + 1))) {
+                break;
+            }
+            suffixes.add(name.substring(start + 1));
+            dot = start;
+        }
+        return suffixes;
+    }
+}
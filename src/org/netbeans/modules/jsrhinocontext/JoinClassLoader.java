@@ -1,11 +1,25 @@
 package org.netbeans.modules.jsrhinocontext;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Queue;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 
 
 /**
@@ -19,12 +33,45 @@ import java.util.Vector;
 */
 public class JoinClassLoader extends ClassLoader {
 
+static {
+   // Let concurrent completions load different classes at the same time.
+   // ClassLoader.registerAsParallelCapable() only exists since Java 7
+   try {
+      Method register = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+      register.setAccessible(true);
+      register.invoke(null); }
+    catch (Exception e) {
+      // Class loading stays serialized on older platforms
+   }}
+
+// The direct buffers reused to read byte code, shared by all instances
+private static final int MAX_POOLED_BUFFERS = 4;
+private static final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+
 private ClassLoader[] delegateClassLoaders;
 
+// The resources found so far, by name
+private final ConcurrentMap<String,URL> resources = new ConcurrentHashMap<String,URL>();
+
+// The names of the resources no delegate has. Misses are the common case,
+// as Rhino probes many classes that do not exist while resolving names
+private final Set<String> missingResources =
+      Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+// The delegate that first had a resource of each package, asked first for
+// the other resources of the package
+private final ConcurrentMap<String,ClassLoader> packageDelegates =
+      new ConcurrentHashMap<String,ClassLoader>();
+
 public JoinClassLoader (ClassLoader parent, ClassLoader... delegateClassLoaders) {
    super (parent);
    this.delegateClassLoaders = delegateClassLoaders; }
 
+// Forgets the resources no delegate had, which the delegates may have now
+// that their roots changed. Classes already defined are kept.
+public void forgetMissingResources() {
+   missingResources.clear(); }
+
 protected Class<?> findClass (String name) throws ClassNotFoundException {
    // It would be easier to call the loadClass() methods of the delegateClassLoaders
    // here, but we have to load the class from the byte code ourselves, because we
@@ -33,42 +80,84 @@ protected Class<?> findClass (String name) throws ClassNotFoundException {
    URL url = findResource(path);
    if (url == null) {
       throw new ClassNotFoundException (name); }
-   ByteBuffer byteCode;
    try {
-      byteCode = loadResource(url); }
+      // Windows keeps mapped files locked until the mapping is collected,
+      // which would get in the way of recompiling them
+      if (url.getProtocol().equals("file") && File.separatorChar != '\\') {
+         return defineMappedClass(name, url); }
+      return definePooledClass(name, url); }
     catch (IOException e) {
-      throw new ClassNotFoundException (name, e); }
-   return defineClass(name, byteCode, null); }
+      throw new ClassNotFoundException (name, e); }}
 
-private ByteBuffer loadResource (URL url) throws IOException {
-   InputStream stream = null;
+// Defines a class straight from its memory-mapped class file.
+private Class<?> defineMappedClass (String name, URL url) throws IOException {
+   File file;
    try {
-      stream = url.openStream();
-      int initialBufferCapacity = Math.min(0x40000, stream.available() + 1);
-      if (initialBufferCapacity <= 2)
-         initialBufferCapacity = 0x10000;
-       else
-         initialBufferCapacity = Math.max(initialBufferCapacity, 0x200);
-      ByteBuffer buf = ByteBuffer.allocate(initialBufferCapacity);
+      file = new File(url.toURI()); }
+    catch (URISyntaxException e) {
+      throw new IOException(url.toString(), e); }
+   RandomAccessFile raf = new RandomAccessFile(file, "r");
+   try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer byteCode = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return defineClass(name, byteCode, null); }
+    finally {
+      raf.close(); }}
+
+// Defines a class from a jar entry, or any other resource, read into a pooled
+// direct buffer. defineClass() copies the byte code, so the buffer can be
+// reused right afterwards.
+private Class<?> definePooledClass (String name, URL url) throws IOException {
+   URLConnection connection = url.openConnection();
+   int length = connection.getContentLength();
+   InputStream stream = connection.getInputStream();
+   ByteBuffer buf = takeBuffer(length);
+   try {
+      ReadableByteChannel channel = Channels.newChannel(stream);
       while (true) {
          if (!buf.hasRemaining()) {
-            ByteBuffer newBuf = ByteBuffer.allocate(2*buf.capacity());
+            ByteBuffer newBuf = ByteBuffer.allocateDirect(2*buf.capacity());
             buf.flip();
             newBuf.put (buf);
             buf = newBuf; }
-         int len = stream.read(buf.array(), buf.position(), buf.remaining());
-         if (len <= 0) break;
-         buf.position (buf.position()+len); }
+         if (channel.read(buf) < 0) break; }
       buf.flip();
-      return buf; }
+      return defineClass(name, buf, null); }
     finally {
-      if (stream != null) stream.close(); }}
+      stream.close();
+      releaseBuffer(buf); }}
+
+private static ByteBuffer takeBuffer (int minCapacity) {
+   ByteBuffer buf = bufferPool.poll();
+   if (buf == null || buf.capacity() < minCapacity) {
+      buf = ByteBuffer.allocateDirect(Math.max(minCapacity, 0x10000)); }
+   buf.clear();
+   return buf; }
+
+private static void releaseBuffer (ByteBuffer buf) {
+   if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+      bufferPool.offer(buf); }}
 
 protected URL findResource (String name) {
-   for (ClassLoader delegate : delegateClassLoaders) {
-      URL resource = delegate.getResource(name);
-      if (resource != null) return resource; }
-   return null; }
+   URL resource = resources.get(name);
+   if (resource != null) return resource;
+   if (missingResources.contains(name)) return null;
+   String packageName = name.substring(0, Math.max(0, name.lastIndexOf('/')));
+   ClassLoader routed = packageDelegates.get(packageName);
+   if (routed != null) {
+      resource = routed.getResource(name); }
+   if (resource == null) {
+      for (ClassLoader delegate : delegateClassLoaders) {
+         if (delegate == routed) continue;
+         resource = delegate.getResource(name);
+         if (resource != null) {
+            packageDelegates.putIfAbsent(packageName, delegate);
+            break; }}}
+   if (resource == null) {
+      missingResources.add(name);
+      return null; }
+   resources.put(name, resource);
+   return resource; }
 
 protected Enumeration<URL> findResources (String name) throws IOException {
    Vector<URL> vector = new Vector<URL>();
@@ -0,0 +1,43 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sink keeping every candidate, in the order they are found
+ * @author Adriano
+ */
+public final class RhinoCandidateList implements RhinoCandidateSink {
+
+    private final List<RhinoCompletionCandidate> candidates = new ArrayList<RhinoCompletionCandidate>();
+
+    @Override
+    public void add(RhinoCompletionCandidate candidate) {
+        candidates.add(candidate);
+    }
+
+    @Override
+    public boolean accepts(String text, RhinoCompletionCandidate.Kind kind) {
+        return true;
+    }
+
+    /**
+     * @return The candidates found so far
+     */
+    public List<RhinoCompletionCandidate> getCandidates() {
+        return candidates;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+/**
+ * Receives the candidates found by the completion rules. A sink may keep only
+ * some of them, and tells which ones it would turn down so that the rules do
+ * not work them out
+ * @author Adriano
+ */
+public interface RhinoCandidateSink {
+
+    /**
+     * Offer a candidate, which the sink keeps or turns down
+     * @param candidate The candidate
+     */
+    void add(RhinoCompletionCandidate candidate);
+
+    /**
+     * Tell whether a candidate would be kept. A candidate turned down counts
+     * as left out
+     * @param text The text of the candidate
+     * @param kind The kind of the candidate
+     * @return False if the candidate would be turned down
+     */
+    boolean accepts(String text, RhinoCompletionCandidate.Kind kind);
+}
@@ -0,0 +1,135 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+/**
+ * A completion proposal as found by the rules: the text to insert, what kind
+ * of entity it stands for, the documentation context and the key used to
+ * sort it among the other proposals
+ * @author Adriano
+ */
+public final class RhinoCompletionCandidate {
+
+    /**
+     * The kinds of entity a candidate can stand for
+     */
+    public enum Kind {
+
+        FIELD("Field", 0),
+        STATIC_FIELD("Static field", 0),
+        METHOD("Method", 0),
+        STATIC_METHOD("Static method", 0),
+        CONSTRUCTOR("Constructor", 2),
+        CLASS("Class", 1),
+        INTERFACE("Interface", 1),
+        INTERFACE_IMPLEMENTATION("Interface implementation", 0),
+        PACKAGE("Package", 1),
+        OBJECT("Object", 0),
+        FUNCTION("Function", 0);
+
+        private final String description;
+
+        private final int rank;
+
+        private Kind(String description, int rank) {
+            this.description = description;
+            this.rank = rank;
+        }
+
+        /**
+         * @return The description shown next to the candidates of this kind
+         */
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * @return How far the candidates of this kind come after the members
+         * and scope objects, which are the most relevant
+         */
+        public int getRank() {
+            return rank;
+        }
+    }
+
+    private final String text;
+
+    private final Kind kind;
+
+    private final String context;
+
+    private final String sortKey;
+
+    /**
+     * (Constructor) Build a candidate sorted by its text
+     * @param text The text to insert
+     * @param kind The kind of entity the candidate stands for
+     * @param context Information about the context of the call
+     */
+    public RhinoCompletionCandidate(String text, Kind kind, String context) {
+        this(text, kind, context, text);
+    }
+
+    /**
+     * (Constructor) Build a candidate
+     * @param text The text to insert
+     * @param kind The kind of entity the candidate stands for
+     * @param context Information about the context of the call
+     * @param sortKey The key the candidate is sorted by
+     */
+    public RhinoCompletionCandidate(String text, Kind kind, String context, String sortKey) {
+        this.text = text;
+        this.kind = kind;
+        this.context = context;
+        this.sortKey = sortKey;
+    }
+
+    /**
+     * @return The text to insert
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return The kind of entity the candidate stands for
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return Information about the context of the call
+     */
+    public String getContext() {
+        return context;
+    }
+
+    /**
+     * @return The key the candidate is sorted by
+     */
+    public String getSortKey() {
+        return sortKey;
+    }
+
+    /**
+     * @return The text, description and context of the candidate, joined by
+     * {@link RhinoCompletor#FIELD_SEPARATOR}
+     */
+    @Override
+    public String toString() {
+        return text + RhinoCompletor.FIELD_SEPARATOR + kind.getDescription()
+                + RhinoCompletor.FIELD_SEPARATOR + context;
+    }
+}
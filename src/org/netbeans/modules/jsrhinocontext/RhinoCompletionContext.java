@@ -0,0 +1,662 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Node;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.ScriptOrFnNode;
+import org.mozilla.javascript.Token;
+
+/**
+ * The line being completed, parsed once into the parts the rules look at, and
+ * classified so that only the rules registered for its kind are run
+ * @author Adriano
+ */
+public final class RhinoCompletionContext {
+
+    /**
+     * The kinds of completion context
+     */
+    public enum Kind {
+
+        /**
+         * A name being typed on its own, like <code>foo</code>
+         */
+        IDENTIFIER,
+
+        /**
+         * A member of an object or package, like <code>foo.ba</code>
+         */
+        MEMBER_ACCESS,
+
+        /**
+         * A static member of a class, like <code>Foo.ba</code>
+         */
+        STATIC_ACCESS,
+
+        /**
+         * The arguments of a call, like <code>foo.bar(</code>
+         */
+        CALL_ARGUMENTS,
+
+        /**
+         * The class of an instance being created, like <code>new Fo</code>
+         */
+        NEW
+    }
+
+    /**
+     * The identifier standing for the cursor in the parsed line
+     */
+    private static final String PLACEHOLDER = "$rhinoCompletion$";
+
+    /**
+     * Starts the first part of a chain rooted at a new instance
+     */
+    private static final String NEW_ROOT = "new ";
+
+    /**
+     * Reports syntax errors as exceptions
+     */
+    private static final ErrorReporter REPORTER = new ErrorReporter() {
+
+        @Override
+        public void warning(String message, String sourceName, int line,
+                String lineSource, int lineOffset) {
+        }
+
+        @Override
+        public void error(String message, String sourceName, int line,
+                String lineSource, int lineOffset) {
+            throw runtimeError(message, sourceName, line, lineSource, lineOffset);
+        }
+
+        @Override
+        public EvaluatorException runtimeError(String message, String sourceName,
+                int line, String lineSource, int lineOffset) {
+            return new EvaluatorException(message, sourceName, line, lineSource, lineOffset);
+        }
+    };
+
+    private String bufferOffset;
+
+    private String buffer;
+
+    private int cursor;
+
+    private String[] parts;
+
+    private String lastPart;
+
+    private String callee;
+
+    private int argumentIndex = -1;
+
+    private boolean instantiation;
+
+    private String rootClass;
+
+    private Kind kind;
+
+    /**
+     * (Constructor) Build the context of a line. The line is parsed with the
+     * cursor standing for an identifier, and the closing brackets it lacks.
+     * When it cannot be parsed, even from one of its later statements, it is
+     * split at its last space or opening bracket instead
+     * @param line The current line
+     * @param cursor The cursor position at the current line
+     */
+    public RhinoCompletionContext(String line, int cursor) {
+        String prefix = line.substring(0, Math.max(0, Math.min(cursor, line.length())));
+        if (!parse(prefix)) {
+            split(line, cursor);
+        }
+        this.lastPart = parts.length == 0 ? buffer : parts[parts.length - 1];
+        this.kind = classify();
+    }
+
+    /**
+     * Parse the line up to the cursor, starting from the earliest statement
+     * or bracket that gives a parsable line
+     * @param prefix The line up to the cursor
+     * @return True if the context could be built from the parse tree
+     */
+    private boolean parse(String prefix) {
+        List<Integer> starts = new ArrayList<Integer>();
+        starts.add(0);
+        char quote = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if (quote != 0) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == ';' || c == '{' || c == '}' || c == '(') {
+                starts.add(i + 1);
+            }
+        }
+        for (int start : starts) {
+            String statement = prefix.substring(start);
+            String closers = getClosers(statement);
+            if (closers == null) {
+                continue;
+            }
+            ScriptOrFnNode tree;
+            try {
+                CompilerEnvirons env = new CompilerEnvirons();
+                env.setErrorReporter(REPORTER);
+                tree = new Parser(env, REPORTER).parse(
+                        statement + PLACEHOLDER + closers, "", 1);
+            } catch (EvaluatorException e) {
+                // Try with the next statement
+                continue;
+            }
+            LinkedList<Node> path = new LinkedList<Node>();
+            if (find(tree, path)) {
+                return build(prefix, path);
+            }
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * @param statement A part of the line up to the cursor
+     * @return The brackets closing the ones left open, or null if the cursor
+     * is within a string or a comment, or a bracket is closed but not opened
+     */
+    private static String getClosers(String statement) {
+        StringBuilder closers = new StringBuilder();
+        char quote = 0;
+        for (int i = 0; i < statement.length(); i++) {
+            char c = statement.charAt(i);
+            if (quote != 0) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            switch (c) {
+                case '"':
+                case '\'':
+                    quote = c;
+                    break;
+                case '/':
+                    if (i + 1 < statement.length() && statement.charAt(i + 1) == '/') {
+                        return null;
+                    }
+                    break;
+                case '(':
+                    closers.insert(0, ')');
+                    break;
+                case '[':
+                    closers.insert(0, ']');
+                    break;
+                case '{':
+                    closers.insert(0, '}');
+                    break;
+                case ')':
+                case ']':
+                case '}':
+                    if (closers.length() == 0 || closers.charAt(0) != c) {
+                        return null;
+                    }
+                    closers.deleteCharAt(0);
+                    break;
+                default:
+            }
+        }
+        return quote == 0 ? closers.toString() : null;
+    }
+
+    /**
+     * Look for the placeholder in a parse tree, functions included
+     * @param node The root of the tree
+     * @param path The nodes from the root down to the placeholder, filled
+     * when it is found
+     * @return True if the placeholder was found
+     */
+    private static boolean find(Node node, LinkedList<Node> path) {
+        path.addLast(node);
+        if ((node.getType() == Token.NAME || node.getType() == Token.STRING)
+                && node.getString().endsWith(PLACEHOLDER)) {
+            return true;
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNext()) {
+            if (find(child, path)) {
+                return true;
+            }
+        }
+        if (node instanceof ScriptOrFnNode) {
+            ScriptOrFnNode script = (ScriptOrFnNode) node;
+            for (int i = 0; i < script.getFunctionCount(); i++) {
+                if (find(script.getFunctionNode(i), path)) {
+                    return true;
+                }
+            }
+        }
+        path.removeLast();
+        return false;
+    }
+
+    /**
+     * Build the context from the path down to the placeholder
+     * @param prefix The line up to the cursor
+     * @param path The nodes from the root down to the placeholder
+     * @return False if the expression around the cursor is not one the rules
+     * can deal with
+     */
+    private boolean build(String prefix, LinkedList<Node> path) {
+        Node placeholder = path.removeLast();
+        String name = placeholder.getString();
+        String partial = name.substring(0, name.length() - PLACEHOLDER.length());
+        Node expression = placeholder;
+        String receiver = null;
+        List<String> chain = null;
+        if (placeholder.getType() == Token.STRING) {
+            // The property of a member access
+            expression = path.removeLast();
+            if (expression.getType() != Token.GETPROP) {
+                return false;
+            }
+            receiver = getDottedName(expression.getFirstChild());
+            if (receiver == null) {
+                // Calls along the way, like a.getB().getC(), or a new
+                // instance, like new Foo().getC()
+                chain = getChain(expression.getFirstChild());
+                if (chain == null) {
+                    return false;
+                }
+                if (chain.get(0).startsWith(NEW_ROOT)) {
+                    String root = chain.get(0);
+                    rootClass = root.substring(NEW_ROOT.length(), root.length() - 2);
+                }
+            }
+        }
+        Node parent = path.isEmpty() ? null : path.getLast();
+        if (parent != null && (parent.getType() == Token.NEW || parent.getType() == Token.CALL)) {
+            if (parent.getFirstChild() == expression) {
+                instantiation = parent.getType() == Token.NEW;
+            } else {
+                callee = getDottedName(parent.getFirstChild());
+                argumentIndex = 0;
+                for (Node arg = parent.getFirstChild().getNext(); arg != expression; arg = arg.getNext()) {
+                    argumentIndex++;
+                }
+            }
+        }
+        String text;
+        List<String> names = new ArrayList<String>();
+        if (chain != null) {
+            text = getChainText(prefix, partial, chain);
+            if (text == null) {
+                return false;
+            }
+            names.addAll(chain);
+        } else {
+            text = receiver == null ? partial : receiver + "." + partial;
+            if (!prefix.endsWith(text)) {
+                // Written with spaces or comments around the dots
+                return false;
+            }
+            if (receiver != null) {
+                names.addAll(Arrays.asList(receiver.split("\\.")));
+            }
+        }
+        bufferOffset = prefix.substring(0, prefix.length() - text.length());
+        buffer = text;
+        cursor = text.length();
+        if (receiver != null || chain != null || !partial.equals("")) {
+            names.add(partial);
+        }
+        parts = names.toArray(new String[names.size()]);
+        return true;
+    }
+
+    /**
+     * @param node An expression
+     * @return The expression as a dotted name, or null if it is not made of
+     * names and member accesses only
+     */
+    private static String getDottedName(Node node) {
+        if (node.getType() == Token.NAME) {
+            return node.getString();
+        }
+        if (node.getType() == Token.GETPROP && node.getLastChild().getType() == Token.STRING) {
+            String target = getDottedName(node.getFirstChild());
+            return target == null ? null : target + "." + node.getLastChild().getString();
+        }
+        return null;
+    }
+
+    /**
+     * @param node An expression
+     * @return The names and method calls the expression is made of, the
+     * calls ending with <code>()</code> whatever their arguments, or null if
+     * it is made of anything else. A chain may start with the creation of an
+     * instance, like <code>new foo.Bar()</code>
+     */
+    private static List<String> getChain(Node node) {
+        List<String> chain;
+        switch (node.getType()) {
+            case Token.NAME:
+                chain = new ArrayList<String>();
+                chain.add(node.getString());
+                return chain;
+            case Token.NEW:
+                String className = getDottedName(node.getFirstChild());
+                if (className == null) {
+                    return null;
+                }
+                chain = new ArrayList<String>();
+                chain.add(NEW_ROOT + className + "()");
+                return chain;
+            case Token.GETPROP:
+                if (node.getLastChild().getType() != Token.STRING
+                        || (chain = getChain(node.getFirstChild())) == null) {
+                    return null;
+                }
+                chain.add(node.getLastChild().getString());
+                return chain;
+            case Token.CALL:
+                chain = getChain(node.getFirstChild());
+                if (chain == null) {
+                    return null;
+                }
+                chain.set(chain.size() - 1, chain.get(chain.size() - 1) + "()");
+                return chain;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Look backwards in the line for the text of a chain of member accesses
+     * @param prefix The line up to the cursor
+     * @param partial The member being typed, at the end of the line
+     * @param chain The names and method calls the chain is made of
+     * @return The text of the chain followed by the member being typed, or
+     * null if it is not written as the chain, with no spaces or comments
+     * around the dots
+     */
+    private static String getChainText(String prefix, String partial, List<String> chain) {
+        StringBuilder shape = new StringBuilder(partial);
+        int i = prefix.length() - partial.length();
+        while (i > 0 && prefix.charAt(i - 1) == '.') {
+            shape.insert(0, '.');
+            i--;
+            if (i > 0 && prefix.charAt(i - 1) == ')') {
+                i = getOpeningBracket(prefix, i - 1);
+                if (i < 0) {
+                    return null;
+                }
+                shape.insert(0, "()");
+            }
+            int end = i;
+            while (i > 0 && Character.isJavaIdentifierPart(prefix.charAt(i - 1))) {
+                i--;
+            }
+            shape.insert(0, prefix.substring(i, end));
+        }
+        if (chain.get(0).startsWith(NEW_ROOT)) {
+            // The new keyword, followed by any space
+            int end = i;
+            while (i > 0 && Character.isWhitespace(prefix.charAt(i - 1))) {
+                i--;
+            }
+            if (i == end || i < 3 || !prefix.startsWith("new", i - 3)
+                    || (i > 3 && Character.isJavaIdentifierPart(prefix.charAt(i - 4)))) {
+                return null;
+            }
+            i -= 3;
+            shape.insert(0, NEW_ROOT);
+        }
+        StringBuilder expected = new StringBuilder();
+        for (String name : chain) {
+            expected.append(name).append('.');
+        }
+        expected.append(partial);
+        return shape.toString().equals(expected.toString()) ? prefix.substring(i) : null;
+    }
+
+    /**
+     * @param text A text
+     * @param close The position of a closing round bracket in the text
+     * @return The position of the matching opening bracket, or -1
+     */
+    private static int getOpeningBracket(String text, int close) {
+        int depth = 0;
+        for (int i = close; i >= 0; i--) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\'') {
+                // Skip the string, back to its opening quote
+                do {
+                    i--;
+                } while (i >= 0 && (text.charAt(i) != c
+                        || (i > 0 && text.charAt(i - 1) == '\\')));
+            } else if (c == ')') {
+                depth++;
+            } else if (c == '(' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Split the line at its last space or opening bracket left open, so that
+     * completion is available not only at the line start but at every key
+     * point. An argument list already closed is part of the buffer, like in
+     * <code>new Foo().</code>
+     */
+    private void split(String line, int cursor) {
+        String offset = "";
+        int index = getSplitPoint(line);
+        if (index >= 0) {
+            offset = line.substring(0, index + 1);
+            cursor = cursor - offset.length();
+            line = line.substring(offset.length());
+        }
+        this.bufferOffset = offset;
+        this.buffer = line;
+        this.cursor = cursor;
+        this.parts = splitParts(line, cursor);
+        String token = offset.trim();
+        if (token.contains(" ")) {
+            token = token.substring(token.lastIndexOf(" ") + 1);
+        }
+        if (token.equals("new")) {
+            // Not when calling the members of the new instance
+            instantiation = !line.contains("(");
+        } else if (token.endsWith("(")) {
+            callee = token.substring(0, token.length() - 1);
+            argumentIndex = 0;
+        }
+    }
+
+    /**
+     * @param line The current line
+     * @return The position of the last space or opening round bracket of the
+     * line that is not within a closed pair of brackets, or -1
+     */
+    private static int getSplitPoint(String line) {
+        int depth = 0;
+        for (int i = line.length() - 1; i >= 0; i--) {
+            char c = line.charAt(i);
+            if (c == ')') {
+                depth++;
+            } else if (c == '(' && depth-- == 0) {
+                return i;
+            } else if (c == ' ' && depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Split the buffer into several parts using "." (the dot) as delimiter.
+     * It is used to identify method calls, object properties, etc.
+     */
+    private static String[] splitParts(String buffer, int cursor) {
+        // Starting from "cursor" at the end of the buffer, look backward
+        // and collect a list of identifiers separated by (possibly zero)
+        // dots. Then look up each identifier in turn until getting to the
+        // last, presumably incomplete fragment. Then enumerate all the
+        // properties of the last object and find any that have the
+        // fragment as a prefix and return those for autocompletion.
+        int m = cursor - 1;
+        while (m >= 0) {
+            char c = buffer.charAt(m);
+            if (!Character.isJavaIdentifierPart(c) && c != '.' && c != '(') {
+                break;
+            }
+            m--;
+        }
+        if (cursor >= 0) {
+            String namesAndDots = buffer.substring(m + 1, cursor);
+            String[] names = namesAndDots.split("\\.", -1);
+            List<String> parts = new ArrayList<String>();
+            for (String part : names) {
+                if (!part.equals("")) {
+                    parts.add(part);
+                }
+            }
+            if (namesAndDots.endsWith(".")) {
+                parts.add("");
+            }
+            return parts.toArray(new String[parts.size()]);
+        }
+        return new String[]{buffer};
+    }
+
+    private Kind classify() {
+        if (instantiation) {
+            return Kind.NEW;
+        }
+        if (parts.length >= 2) {
+            char first = getQualifier().charAt(0);
+            return first == Character.toUpperCase(first) ? Kind.STATIC_ACCESS : Kind.MEMBER_ACCESS;
+        }
+        if (argumentIndex >= 0) {
+            return Kind.CALL_ARGUMENTS;
+        }
+        return Kind.IDENTIFIER;
+    }
+
+    /**
+     * @return The kind of the context
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return The part of the line that precedes the buffer
+     */
+    public String getBufferOffset() {
+        return bufferOffset;
+    }
+
+    /**
+     * @return The part of the line being completed
+     */
+    public String getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return The cursor position in the buffer
+     */
+    public int getCursor() {
+        return cursor;
+    }
+
+    /**
+     * @return The parts of the buffer between dots. The method calls of a
+     * chain end with <code>()</code>, whatever their arguments
+     */
+    public String[] getParts() {
+        return parts.clone();
+    }
+
+    /**
+     * @return The number of parts of the buffer
+     */
+    public int getPartCount() {
+        return parts.length;
+    }
+
+    /**
+     * @return The last part of the buffer, the one being typed
+     */
+    public String getLastPart() {
+        return lastPart;
+    }
+
+    /**
+     * @return The part of the buffer before the last one, or null if there
+     * is none
+     */
+    public String getQualifier() {
+        return parts.length < 2 ? null : parts[parts.length - 2];
+    }
+
+    /**
+     * @return The called function or instantiated class when completing call
+     * arguments, as a dotted name like <code>foo.bar</code>, or null if it
+     * is not one
+     */
+    public String getCallee() {
+        return callee;
+    }
+
+    /**
+     * @return The position of the argument being completed among the call
+     * arguments, or -1 when not completing call arguments
+     */
+    public int getArgumentIndex() {
+        return argumentIndex;
+    }
+
+    /**
+     * @return True if the buffer is the class of an instance being created
+     */
+    public boolean isInstantiation() {
+        return instantiation;
+    }
+
+    /**
+     * @return The class instantiated at the start of a chain of member
+     * accesses, like <code>foo.Bar</code> for <code>new foo.Bar().ba</code>,
+     * or null if the chain does not start with a new instance. The first
+     * part of such a chain is <code>new foo.Bar()</code>
+     */
+    public String getRootClass() {
+        return rootClass;
+    }
+}
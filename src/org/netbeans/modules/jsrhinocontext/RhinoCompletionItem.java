@@ -39,23 +39,40 @@ public class RhinoCompletionItem implements CompletionItem {
     private String preview;
     private String type;
     private String context;
+    private String sortKey;
+    private int sortPriority;
     private static ImageIcon fieldIcon =
             new ImageIcon(Utilities.loadImage("org/netbeans/modules/jsrhinocontext/rhino.jpg"));
     private static Color fieldColor = Color.decode("0x0000B2");
     private int caretOffset;
     private int matchOffset;
 
+    public RhinoCompletionItem(RhinoCompletionCandidate candidate, int matchOffset, int caretOffset) {
+        this(candidate.getText(), candidate.getKind().getDescription(),
+                candidate.getContext(), candidate.getSortKey(), matchOffset, caretOffset);
+        this.sortPriority = candidate.getKind().getRank();
+    }
+
     public RhinoCompletionItem(String text, int matchOffset, int caretOffset) {
-        // Split fields
-        String[] fields = text.split(RhinoCompletor.FIELD_SEPARATOR);
-        this.text = fields[0];
+        // Split fields, leaving any separator in the context where it belongs
+        this(text.split(RhinoCompletor.FIELD_SEPARATOR, 3), matchOffset, caretOffset);
+    }
+
+    private RhinoCompletionItem(String[] fields, int matchOffset, int caretOffset) {
+        this(fields[0], fields[1], fields[2], fields[0], matchOffset, caretOffset);
+    }
+
+    private RhinoCompletionItem(String text, String type, String context, String sortKey,
+            int matchOffset, int caretOffset) {
+        this.text = text;
         // Trim suggestion text
         this.preview = this.text + "  ";
         if (this.preview.length() > 60) {
             this.preview = this.preview.substring(0, 59) + "…  ";
         }
-        this.type = fields[1];
-        this.context = fields[2];
+        this.type = type;
+        this.context = context;
+        this.sortKey = sortKey;
         this.matchOffset = matchOffset;
         this.caretOffset = caretOffset;
     }
@@ -110,11 +127,11 @@ public class RhinoCompletionItem implements CompletionItem {
     }
 
     public int getSortPriority() {
-        return 0;
+        return sortPriority;
     }
 
     public CharSequence getSortText() {
-        return text;
+        return sortKey;
     }
 
     public String getText() {
@@ -0,0 +1,215 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import java.util.prefs.Preferences;
+import org.netbeans.api.project.FileOwnerQuery;
+import org.netbeans.api.project.Project;
+import org.netbeans.api.project.ProjectUtils;
+import org.openide.filesystems.FileObject;
+import org.openide.util.NbPreferences;
+
+/**
+ * The tunable limits of Rhino content assist, stored in the module preferences.
+ * The completion mode can be overridden by the preferences of a project
+ * @author Adriano
+ */
+public final class RhinoCompletionOptions {
+
+    /**
+     * The maximum number of compiled statements kept by each document
+     */
+    public static final String SCRIPT_CACHE_SIZE = "scriptCacheSize";
+
+    /**
+     * The maximum number of elements of a script array seen by content assist
+     */
+    public static final String ARRAY_LENGTH_LIMIT = "arrayLengthLimit";
+
+    /**
+     * The maximum nesting of script arrays seen by content assist
+     */
+    public static final String ARRAY_DEPTH_LIMIT = "arrayDepthLimit";
+
+    /**
+     * The milliseconds a completion query waits for further keystrokes
+     * before evaluating the document
+     */
+    public static final String DEBOUNCE_DELAY = "debounceDelay";
+
+    /**
+     * The instructions an evaluation may go through
+     */
+    public static final String INSTRUCTION_BUDGET = "instructionBudget";
+
+    /**
+     * The milliseconds an evaluation may last
+     */
+    public static final String TIME_BUDGET = "timeBudget";
+
+    /**
+     * The maximum number of idle script engines kept for each set of classpaths
+     */
+    public static final String ENGINE_POOL_SIZE = "enginePoolSize";
+
+    /**
+     * The milliseconds the idle script engines of unused classpaths are kept
+     */
+    public static final String ENGINE_POOL_IDLE_TIMEOUT = "enginePoolIdleTimeout";
+
+    /**
+     * The maximum number of candidates of a completion query
+     */
+    public static final String CANDIDATE_LIMIT = "candidateLimit";
+
+    /**
+     * The maximum number of parameter proposals of a method signature
+     */
+    public static final String PARAMETER_PROPOSAL_LIMIT = "parameterProposalLimit";
+
+    /**
+     * How the types of the document variables are found out
+     */
+    public static final String COMPLETION_MODE = "completionMode";
+
+    /**
+     * Completion mode evaluating the document
+     */
+    public static final String MODE_EVALUATE = "evaluate";
+
+    /**
+     * Completion mode inferring the types from the source of the document,
+     * without evaluating it
+     */
+    public static final String MODE_INFER = "infer";
+
+    /**
+     * Completion mode answering with the inferred types at once, while the
+     * document is evaluated in the background
+     */
+    public static final String MODE_HYBRID = "hybrid";
+
+    private RhinoCompletionOptions() {
+    }
+
+    /**
+     * @return The preferences of the module
+     */
+    public static Preferences getPreferences() {
+        return NbPreferences.forModule(RhinoCompletionOptions.class);
+    }
+
+    /**
+     * @return The maximum number of compiled statements kept by each document
+     */
+    public static int getScriptCacheSize() {
+        return getPreferences().getInt(SCRIPT_CACHE_SIZE, 512);
+    }
+
+    /**
+     * @return The maximum number of elements of a script array seen by
+     * content assist
+     */
+    public static int getArrayLengthLimit() {
+        return getPreferences().getInt(ARRAY_LENGTH_LIMIT, 1000);
+    }
+
+    /**
+     * @return The maximum nesting of script arrays seen by content assist.
+     * Arrays nested deeper are left as they are
+     */
+    public static int getArrayDepthLimit() {
+        return getPreferences().getInt(ARRAY_DEPTH_LIMIT, 4);
+    }
+
+    /**
+     * @return The milliseconds a completion query waits for further
+     * keystrokes before evaluating the document. Only a query following
+     * another one by less than this delay waits
+     */
+    public static int getDebounceDelay() {
+        return getPreferences().getInt(DEBOUNCE_DELAY, 150);
+    }
+
+    /**
+     * @return The instructions an evaluation may go through, or 0 for no
+     * limit. Rhino counts instructions by its bytecode where it can, and by
+     * line changes and function calls otherwise
+     */
+    public static long getInstructionBudget() {
+        return getPreferences().getLong(INSTRUCTION_BUDGET, 20000000);
+    }
+
+    /**
+     * @return The milliseconds an evaluation may last, or 0 for no limit
+     */
+    public static long getTimeBudget() {
+        return getPreferences().getLong(TIME_BUDGET, 2000);
+    }
+
+    /**
+     * @return The maximum number of idle script engines kept for each set of
+     * classpaths
+     */
+    public static int getEnginePoolSize() {
+        return getPreferences().getInt(ENGINE_POOL_SIZE, 2);
+    }
+
+    /**
+     * @return The milliseconds the idle script engines of a set of classpaths
+     * are kept once no document uses them, so that reopening a document
+     * finds them ready
+     */
+    public static int getEnginePoolIdleTimeout() {
+        return getPreferences().getInt(ENGINE_POOL_IDLE_TIMEOUT, 60000);
+    }
+
+    /**
+     * @return The maximum number of candidates of a completion query. Asking
+     * for all the items lifts the limit
+     */
+    public static int getCandidateLimit() {
+        return getPreferences().getInt(CANDIDATE_LIMIT, 250);
+    }
+
+    /**
+     * @return The maximum number of parameter proposals of a method
+     * signature, besides the one naming the parameter types
+     */
+    public static int getParameterProposalLimit() {
+        return getPreferences().getInt(PARAMETER_PROPOSAL_LIMIT, 16);
+    }
+
+    /**
+     * @param fo The <code>FileObject</code> of a document, or null
+     * @return How the types of the variables of the document are found out:
+     * {@link #MODE_EVALUATE}, {@link #MODE_INFER} or {@link #MODE_HYBRID}.
+     * The preferences of the project owning the document come first
+     */
+    public static String getCompletionMode(FileObject fo) {
+        String mode = null;
+        Project project = fo == null ? null : FileOwnerQuery.getOwner(fo);
+        if (project != null) {
+            Preferences preferences = ProjectUtils.getPreferences(
+                    project, RhinoCompletionOptions.class, true);
+            if (preferences != null) {
+                mode = preferences.get(COMPLETION_MODE, null);
+            }
+        }
+        if (mode == null) {
+            mode = getPreferences().get(COMPLETION_MODE, MODE_EVALUATE);
+        }
+        return mode;
+    }
+}
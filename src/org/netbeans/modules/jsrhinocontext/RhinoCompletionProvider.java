@@ -13,10 +13,16 @@
 
 package org.netbeans.modules.jsrhinocontext;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import javax.script.Bindings;
-import javax.script.ScriptContext;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 import javax.swing.text.BadLocationException;
@@ -24,7 +30,10 @@ import javax.swing.text.Document;
 import javax.swing.text.EditorKit;
 import javax.swing.text.Element;
 import javax.swing.text.JTextComponent;
+import javax.swing.text.Segment;
 import javax.swing.text.StyledDocument;
+import org.netbeans.api.editor.EditorRegistry;
+import org.netbeans.api.java.classpath.ClassPath;
 import org.netbeans.modules.jsrhinocontext.rules.FieldsAndMethodsRule;
 import org.netbeans.modules.jsrhinocontext.rules.InterfaceImplementationRule;
 import org.netbeans.modules.jsrhinocontext.rules.MethodSignatureRule;
@@ -41,6 +50,7 @@ import org.openide.filesystems.FileObject;
 import org.openide.loaders.DataObject;
 import org.openide.text.CloneableEditorSupport;
 import org.openide.util.Exceptions;
+import org.openide.util.RequestProcessor;
 import org.openide.windows.TopComponent;
 import org.openide.windows.TopComponent.Registry;
 
@@ -49,77 +59,177 @@ import org.openide.windows.TopComponent.Registry;
  * @author Adriano
  */
 public class RhinoCompletionProvider implements CompletionProvider {
+
+    /**
+     * The MIME type of the documents to complete
+     */
+    private static final String MIME_TYPE = "text/javascript";
+
+    /**
+     * Builds the sessions of the documents opened in an editor ahead of the
+     * first completion query
+     */
+    private static final RequestProcessor WARM_UP = new RequestProcessor("Rhino content assist warm-up", 1);
+
+    /**
+     * Disposes the sessions given up, once their running query is over
+     */
+    private static final RequestProcessor DISPOSER = new RequestProcessor("Rhino content assist disposal", 1);
+
     private boolean enabled;
 
+    /**
+     * The completion sessions of the open documents
+     */
+    private final Map<FileObject, RhinoCompletionSession> sessions =
+            new HashMap<FileObject, RhinoCompletionSession>();
+
+    /**
+     * The background evaluations of the open documents, guarded by the
+     * sessions
+     */
+    private final Map<FileObject, BackgroundEvaluation> evaluations =
+            new HashMap<FileObject, BackgroundEvaluation>();
+
+    public RhinoCompletionProvider() {
+        // Warm up the sessions of the documents whose editors get focused,
+        // and drop the ones of the documents whose editors get closed
+        EditorRegistry.addPropertyChangeListener(new PropertyChangeListener() {
+
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if (EditorRegistry.FOCUS_GAINED_PROPERTY.equals(evt.getPropertyName())) {
+                    if (evt.getNewValue() instanceof JTextComponent) {
+                        scheduleWarmUp(((JTextComponent) evt.getNewValue()).getDocument());
+                    }
+                } else if (EditorRegistry.COMPONENT_REMOVED_PROPERTY.equals(evt.getPropertyName())) {
+                    evictClosedSessions();
+                }
+            }
+        });
+    }
+
     @Override
     public CompletionTask createTask(int i, JTextComponent jTextComponent) {
         boolean completionEnabled = isEnabled();
         
-        if (!completionEnabled || i != CompletionProvider.COMPLETION_QUERY_TYPE) {
+        if (!completionEnabled || (i != CompletionProvider.COMPLETION_QUERY_TYPE
+                && i != CompletionProvider.COMPLETION_ALL_QUERY_TYPE)) {
             if(!completionEnabled) {
                 updateResultWindow(null, "Rhino code assist is disabled");
             }
             return null;
         }
+        // Asking again for all the items lifts the limit of candidates
+        final int candidateLimit = i == CompletionProvider.COMPLETION_ALL_QUERY_TYPE
+                ? Integer.MAX_VALUE : RhinoCompletionOptions.getCandidateLimit();
 
         return new AsyncCompletionTask(new AsyncCompletionQuery() {
 
             @Override
             protected void query(CompletionResultSet completionResultSet, Document document, int caretOffset) {
                
-                Object sdp = document.getProperty(Document.StreamDescriptionProperty);
-                FileObject fo = null;
-                if (sdp instanceof FileObject) {
-                    fo = (FileObject) sdp;
-                }
-                if (sdp instanceof DataObject) {
-                    DataObject dobj = (DataObject) sdp;
-                    fo = dobj.getPrimaryFile();
-                }
+                FileObject fo = getFileObject(document);
+                String mode = RhinoCompletionOptions.getCompletionMode(fo);
                 try {
+                    // Reuse the autocompletor of the document
+                    final RhinoCompletionSession session = getSession(fo);
+                    long sincePrevious = session.markQueryStart();
+                    final long generation = session.nextGeneration();
+                    RhinoEvaluationMonitor monitor = new RhinoEvaluationMonitor(
+                            RhinoCompletionOptions.getInstructionBudget(),
+                            RhinoCompletionOptions.getTimeBudget()) {
+
+                        @Override
+                        public boolean isCancelled() {
+                            return super.isCancelled() || isTaskCancelled()
+                                    || !session.isCurrent(generation) || !session.isValid();
+                        }
+                    };
+                    // Let rapid keystrokes settle into a single evaluation:
+                    // the queries they start supersede this one meanwhile.
+                    // An isolated query answers at once
+                    int debounceDelay = RhinoCompletionOptions.getDebounceDelay();
+                    if (sincePrevious < debounceDelay) {
+                        Thread.sleep(debounceDelay);
+                        if (monitor.isCancelled()) {
+                            completionResultSet.finish();
+                            return;
+                        }
+                    }
+
                     final StyledDocument bDoc = (StyledDocument) document;
                     final int wordStartOffset = getRowFirstNonWhite(bDoc, caretOffset);
                     boolean evalEx = false;
+                    String evalStats = "";
                     if (wordStartOffset >= 0) {
                         int inlineCaretOffset = caretOffset - wordStartOffset;
                         final String buffer = bDoc.getText(wordStartOffset, inlineCaretOffset);
                         final int cursor = inlineCaretOffset;
-                        ArrayList<String> candidates = new ArrayList<String>();
-                        
-                        // Setup the autocompletor
-                        String script = bDoc.getText(0, caretOffset - buffer.length());
-                        RhinoCompletor completor = new RhinoCompletor(fo);
-                        RhinoCompletionRule[] rules = new RhinoCompletionRule[5];
-                        rules[0] = (RhinoCompletionRule) new MethodSignatureRule(completor);
-                        rules[1] = (RhinoCompletionRule) new StaticFieldsAndMethodsRule(completor);
-                        rules[2] = (RhinoCompletionRule) new FieldsAndMethodsRule(completor);
-                        rules[3] = (RhinoCompletionRule) new InterfaceImplementationRule(completor);
-                        rules[4] = (RhinoCompletionRule) new ObjectsInEngineScopeRule(completor);
-                        
-                        // Allow further initialization
-                        completor.setEngine(initEngine(completor.getEngine()));
-                        completor.setRules(initRules(rules, completor));
+                        RhinoCompletionSink candidates = new RhinoCompletionSink(completionResultSet,
+                                candidateLimit, wordStartOffset, caretOffset);
                         
-                        try {
-                            ScriptEngine engine = completor.getEngine();
-                            Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
-                            engine.eval(script, bindings);
-                            bindings.remove("context");
-                        } catch (ScriptException ex) {
-                            updateResultWindow(fo, ex.getMessage());
-                            evalEx = true;
-                        }
+                        int scriptLength = caretOffset - buffer.length();
+                        RhinoCompletor completor = session.getCompletor();
+                        synchronized (session) {
+                            // A disposed session gave its engine back
+                            if (monitor.isCancelled()) {
+                                completionResultSet.finish();
+                                return;
+                            }
+                            // Let the engine and the rules resolve the document
+                            // classes during this query only
+                            Thread thread = Thread.currentThread();
+                            ClassLoader previous = thread.getContextClassLoader();
+                            thread.setContextClassLoader(completor.getClassLoader());
+                            try {
+                                if (RhinoCompletionOptions.MODE_EVALUATE.equals(mode)) {
+                                    completor.setInferredTypes(Collections.<String, Class<?>>emptyMap());
+                                    try {
+                                        session.evaluate(bDoc, scriptLength, monitor);
+                                    } catch (ScriptException ex) {
+                                        updateResultWindow(fo, ex.getMessage() + "\n"
+                                                + session.getEvaluator().getStatistics());
+                                        evalEx = true;
+                                    }
+                                    if (monitor.isCancelled()) {
+                                        // A newer query is going to complete instead
+                                        completionResultSet.finish();
+                                        return;
+                                    }
+                                    evalStats = session.getEvaluator().getStatistics() + "\n"
+                                            + completor.getEnginePool().getStatistics();
+                                } else {
+                                    // Answer from the source alone, together
+                                    // with the bindings of the last evaluation
+                                    RhinoTypeInferencer inferencer = session.getInferencer();
+                                    completor.setInferredTypes(inferencer.infer(
+                                            bDoc.getText(0, scriptLength)));
+                                    evalStats = inferencer.getStatistics();
+                                }
 
-                        // Finally, perform autocompletion and fill result set
-                        int matchOffset = completor.complete(buffer, cursor, candidates);
-                        for(String candidate : candidates) {
-                            completionResultSet.addItem(new RhinoCompletionItem(candidate, wordStartOffset + matchOffset, caretOffset));
+                                // Finally, perform autocompletion and fill result set
+                                completor.complete(buffer, cursor, candidates);
+                            } finally {
+                                thread.setContextClassLoader(previous);
+                            }
+                        }
+                        if (RhinoCompletionOptions.MODE_HYBRID.equals(mode)) {
+                            // Catch up with the inferred answer
+                            scheduleEvaluation(session, bDoc, scriptLength);
                         }
                     }  
                     
-                    if(!evalEx) {
-                        updateResultWindow(fo, "Parsed successfully.");
+                    if (monitor.isAborted()) {
+                        // Candidates come from the statements evaluated in time
+                        updateResultWindow(fo, "Evaluation truncated. "
+                                + monitor.getAbortReason() + "\n" + evalStats);
+                    } else if(!evalEx) {
+                        updateResultWindow(fo, "Parsed successfully.\n" + evalStats);
                     }
+                } catch (InterruptedException ex) {
+                    // The query was cancelled while waiting
+                    Thread.currentThread().interrupt();
                 } catch (Exception ex) {
                     Exceptions.printStackTrace(ex);
                 }
@@ -129,20 +239,274 @@ public class RhinoCompletionProvider implements CompletionProvider {
 
     }
 
+    /**
+     * @param document A document
+     * @return The <code>FileObject</code> the document was loaded from, or null
+     */
+    static FileObject getFileObject(Document document) {
+        Object sdp = document.getProperty(Document.StreamDescriptionProperty);
+        FileObject fo = null;
+        if (sdp instanceof FileObject) {
+            fo = (FileObject) sdp;
+        }
+        if (sdp instanceof DataObject) {
+            DataObject dobj = (DataObject) sdp;
+            fo = dobj.getPrimaryFile();
+        }
+        return fo;
+    }
+
+    /**
+     * Get the completion session of a document, building a new one when the
+     * document has none yet or when its classpaths changed since it was built
+     * @param fo The <code>FileObject</code> of the document
+     * @return The completion session of the document
+     */
+    protected RhinoCompletionSession getSession(FileObject fo) {
+        ClassPath[] classPaths = RhinoCompletionSession.getClassPaths(fo);
+        String fingerprint = RhinoCompletionSession.fingerprint(classPaths);
+        RhinoCompletionSession stale;
+        RhinoCompletionSession session;
+        synchronized (sessions) {
+            stale = sessions.get(fo);
+            if (stale != null && stale.isValid()
+                    && stale.getFingerprint().equals(fingerprint)) {
+                return stale;
+            }
+            session = createSession(fo, classPaths);
+            sessions.put(fo, session);
+        }
+        if (stale != null) {
+            scheduleDispose(stale);
+        }
+        return session;
+    }
+
+    /**
+     * Dispose a session in the background. The session is invalidated at
+     * once, which cancels its running evaluation, and the disposal then waits
+     * for the query holding it to end
+     * @param session A session no longer in use
+     */
+    private static void scheduleDispose(final RhinoCompletionSession session) {
+        session.invalidate();
+        DISPOSER.post(new Runnable() {
+
+            @Override
+            public void run() {
+                session.dispose();
+            }
+        });
+    }
+
+    /**
+     * Build the completor, the script engine and the rules of a new session
+     * @param fo The <code>FileObject</code> of the document
+     * @param classPaths The BOOT, COMPILE and SOURCE classpaths of the document
+     * @return The new session
+     */
+    private RhinoCompletionSession createSession(FileObject fo, ClassPath[] classPaths) {
+        RhinoCompletor completor = new RhinoCompletor(fo);
+        RhinoCompletionRule[] rules = new RhinoCompletionRule[5];
+        rules[0] = (RhinoCompletionRule) new MethodSignatureRule(completor);
+        rules[1] = (RhinoCompletionRule) new StaticFieldsAndMethodsRule(completor);
+        rules[2] = (RhinoCompletionRule) new FieldsAndMethodsRule(completor);
+        rules[3] = (RhinoCompletionRule) new InterfaceImplementationRule(completor);
+        rules[4] = (RhinoCompletionRule) new ObjectsInEngineScopeRule(completor);
+
+        // Allow further initialization
+        completor.setEngine(initEngine(completor.getEngine()));
+        completor.setRules(initRules(rules, completor));
+        return new RhinoCompletionSession(fo, classPaths, completor);
+    }
+
+    /**
+     * Build the session of a document in the background, unless completion
+     * is disabled or the document already has a valid session
+     * @param document A document opened in an editor
+     */
+    void scheduleWarmUp(final Document document) {
+        if (!isEnabled() || !MIME_TYPE.equals(document.getProperty("mimeType"))) {
+            return;
+        }
+        final FileObject fo = getFileObject(document);
+        if (fo == null) {
+            return;
+        }
+        synchronized (sessions) {
+            RhinoCompletionSession session = sessions.get(fo);
+            if (session != null && session.isValid()) {
+                return;
+            }
+        }
+        WARM_UP.post(new Runnable() {
+
+            @Override
+            public void run() {
+                warmUp(fo, document);
+            }
+        }, 0, Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Build the session of a document together with its type index, class
+     * loader and engine, and evaluate the whole document once unless types
+     * are only inferred. The evaluation gives way to any completion query
+     * @param fo The <code>FileObject</code> of the document
+     * @param document The document
+     */
+    private void warmUp(FileObject fo, Document document) {
+        try {
+            RhinoCompletionSession session = getSession(fo);
+            session.getCompletor().getJavaTypeIndex().getNames();
+            if (!RhinoCompletionOptions.MODE_INFER.equals(
+                    RhinoCompletionOptions.getCompletionMode(fo))) {
+                evaluate(session, document, document.getLength());
+            }
+        } catch (Exception ex) {
+            Exceptions.printStackTrace(ex);
+        }
+    }
+
+    /**
+     * Evaluate the beginning of a document in the background, once the
+     * completion queries on it stop coming. Each query postpones the
+     * evaluation scheduled by the previous one
+     * @param session The session of the document
+     * @param document The document
+     * @param length The length of the beginning of the document to evaluate
+     */
+    private void scheduleEvaluation(RhinoCompletionSession session,
+            Document document, int length) {
+        BackgroundEvaluation evaluation;
+        synchronized (sessions) {
+            evaluation = evaluations.get(session.getFileObject());
+            if (evaluation == null || evaluation.session != session) {
+                evaluation = new BackgroundEvaluation(session);
+                evaluations.put(session.getFileObject(), evaluation);
+            }
+        }
+        evaluation.schedule(document, length);
+    }
+
+    /**
+     * The evaluation of a document catching up with its inferred answers.
+     * It runs once for a burst of queries, on the text of the latest one
+     */
+    private final class BackgroundEvaluation implements Runnable {
+
+        private final RhinoCompletionSession session;
+
+        private final RequestProcessor.Task task;
+
+        private Document document;
+
+        private int length;
+
+        BackgroundEvaluation(RhinoCompletionSession session) {
+            this.session = session;
+            this.task = WARM_UP.create(this);
+            task.setPriority(Thread.MIN_PRIORITY);
+        }
+
+        synchronized void schedule(Document document, int length) {
+            this.document = document;
+            this.length = length;
+            task.schedule(RhinoCompletionOptions.getDebounceDelay());
+        }
+
+        @Override
+        public void run() {
+            Document latestDocument;
+            int latestLength;
+            synchronized (this) {
+                latestDocument = document;
+                latestLength = length;
+            }
+            if (session.isValid()) {
+                evaluate(session, latestDocument, Math.min(latestLength, latestDocument.getLength()));
+            }
+        }
+    }
+
+    /**
+     * Evaluate the beginning of a document out of any completion query. The
+     * evaluation gives way to any completion query
+     * @param session The session of the document
+     * @param document The document
+     * @param length The length of the beginning of the document to evaluate
+     */
+    private void evaluate(final RhinoCompletionSession session, Document document, int length) {
+        final long generation = session.getGeneration();
+        RhinoEvaluationMonitor monitor = new RhinoEvaluationMonitor(
+                RhinoCompletionOptions.getInstructionBudget(),
+                RhinoCompletionOptions.getTimeBudget()) {
+
+            @Override
+            public boolean isCancelled() {
+                return super.isCancelled() || !session.isCurrent(generation)
+                        || !session.isValid();
+            }
+        };
+        RhinoCompletor completor = session.getCompletor();
+        synchronized (session) {
+            // A disposed session gave its engine back
+            if (monitor.isCancelled()) {
+                return;
+            }
+            Thread thread = Thread.currentThread();
+            ClassLoader previous = thread.getContextClassLoader();
+            thread.setContextClassLoader(completor.getClassLoader());
+            try {
+                session.evaluate(document, length, monitor);
+            } catch (ScriptException ex) {
+                // The next completion query will report it
+            } catch (BadLocationException ex) {
+                // The document got shorter meanwhile
+            } finally {
+                thread.setContextClassLoader(previous);
+            }
+        }
+    }
+
+    /**
+     * Dispose the sessions of the documents that are no longer open in any
+     * editor
+     */
+    void evictClosedSessions() {
+        Set<FileObject> openFiles = new HashSet<FileObject>();
+        for (JTextComponent component : EditorRegistry.componentList()) {
+            FileObject fo = getFileObject(component.getDocument());
+            if (fo != null) {
+                openFiles.add(fo);
+            }
+        }
+        List<RhinoCompletionSession> closed = new ArrayList<RhinoCompletionSession>();
+        synchronized (sessions) {
+            for (Iterator<Map.Entry<FileObject, RhinoCompletionSession>> it =
+                    sessions.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<FileObject, RhinoCompletionSession> entry = it.next();
+                if (!openFiles.contains(entry.getKey())) {
+                    closed.add(entry.getValue());
+                    evaluations.remove(entry.getKey());
+                    it.remove();
+                }
+            }
+        }
+        // Called on the event thread, which must not wait for a query
+        for (RhinoCompletionSession session : closed) {
+            scheduleDispose(session);
+        }
+    }
+
     static int getRowFirstNonWhite(StyledDocument doc, int offset)
             throws BadLocationException {
         Element lineElement = doc.getParagraphElement(offset);
         int start = lineElement.getStartOffset();
-        while (start + 1 < lineElement.getEndOffset()) {
-            try {
-                if (doc.getText(start, 1).charAt(0) != ' ') {
-                    break;
-                }
-            } catch (BadLocationException ex) {
-                throw (BadLocationException) new BadLocationException(
-                        "calling getText(" + start + ", " + (start + 1) +
-                        ") on doc of length: " + doc.getLength(), start).initCause(ex);
-            }
+        // Look at the line through a view rather than a character at a time
+        Segment line = RhinoDocumentJournal.view(doc, start,
+                Math.max(0, lineElement.getEndOffset() - 1 - start));
+        for (char c = line.first(); c == ' '; c = line.next()) {
             start++;
         }
         return start;
@@ -158,6 +522,10 @@ public class RhinoCompletionProvider implements CompletionProvider {
      */
     public void toggleEnable() {
         enabled = !enabled;
+        JTextComponent component = EditorRegistry.lastFocusedComponent();
+        if (component != null) {
+            scheduleWarmUp(component.getDocument());
+        }
     }
 
     /**
@@ -170,7 +538,9 @@ public class RhinoCompletionProvider implements CompletionProvider {
     
     /**
      * Used when extender modules need to initialize the script engine
-     * to perform their own behaviour. The default implementation does nothing
+     * to perform their own behaviour. It is called once for each completion
+     * session, and the engine scope bindings it leaves are restored before
+     * every evaluation. The default implementation does nothing
      * @param engine The engine that will be used to parse the document
      * @param script The script that will be evaluated
      * @return The default implementation returns the input parameter
@@ -0,0 +1,301 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.script.ScriptException;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import org.netbeans.api.java.classpath.ClassPath;
+import org.openide.filesystems.FileObject;
+
+/**
+ * The completion state of a single document, reused across completion queries.
+ * It owns the completor together with its class loader, script engine and
+ * rules, and stays valid until one of the document classpaths changes.
+ * @author Adriano
+ */
+public class RhinoCompletionSession {
+
+    /**
+     * The classpath types a session depends on
+     */
+    static final String[] CLASSPATH_TYPES = new String[] {
+        ClassPath.BOOT, ClassPath.COMPILE, ClassPath.SOURCE
+    };
+
+    private final FileObject fo;
+
+    private final String fingerprint;
+
+    private final ClassPath[] classPaths;
+
+    private final RhinoCompletor completor;
+
+    private final PropertyChangeListener classPathListener;
+
+    /**
+     * Evaluates the document, starting from the engine scope bindings as left
+     * by the initialization
+     */
+    private final RhinoIncrementalEvaluator evaluator;
+
+    /**
+     * Infers the types of the document variables without evaluating it
+     */
+    private final RhinoTypeInferencer inferencer;
+
+    /**
+     * Records the changes of the document since the last evaluation
+     */
+    private RhinoDocumentJournal journal;
+
+    private volatile boolean valid = true;
+
+    /**
+     * Counts the completion queries, so that each one can tell whether a
+     * newer one has superseded it
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * The time the latest completion query started, in milliseconds, or 0
+     * before the first one
+     */
+    private final AtomicLong lastQueryMillis = new AtomicLong();
+
+    /**
+     * (Constructor) Build a session around an initialized completor
+     * @param fo The <code>FileObject</code> of the completed document
+     * @param classPaths The BOOT, COMPILE and SOURCE classpaths of the document
+     * @param completor The completor, whose engine and rules are already initialized
+     */
+    RhinoCompletionSession(FileObject fo, ClassPath[] classPaths, RhinoCompletor completor) {
+        this.fo = fo;
+        this.classPaths = classPaths;
+        this.fingerprint = fingerprint(classPaths);
+        this.completor = completor;
+        this.evaluator = new RhinoIncrementalEvaluator(completor, completor.getEngineBindings());
+        this.inferencer = new RhinoTypeInferencer(completor);
+        this.classPathListener = new PropertyChangeListener() {
+
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if (ClassPath.PROP_ENTRIES.equals(evt.getPropertyName())
+                        || ClassPath.PROP_ROOTS.equals(evt.getPropertyName())) {
+                    valid = false;
+                }
+            }
+        };
+        for (ClassPath cp : classPaths) {
+            if (cp != null) {
+                cp.addPropertyChangeListener(classPathListener);
+            }
+        }
+    }
+
+    /**
+     * @param fo The <code>FileObject</code> of a document
+     * @return The BOOT, COMPILE and SOURCE classpaths of the document, in
+     * this order. Any of them may be null
+     */
+    static ClassPath[] getClassPaths(FileObject fo) {
+        ClassPath[] classPaths = new ClassPath[CLASSPATH_TYPES.length];
+        for (int i = 0; i < CLASSPATH_TYPES.length; i++) {
+            classPaths[i] = ClassPath.getClassPath(fo, CLASSPATH_TYPES[i]);
+        }
+        return classPaths;
+    }
+
+    /**
+     * Compute the identity of a set of classpaths, which changes whenever
+     * any of their entries does. It is made of all the entry URLs, so that
+     * two different sets never share it
+     * @param classPaths The classpaths to identify
+     * @return The fingerprint of the classpaths
+     */
+    static String fingerprint(ClassPath[] classPaths) {
+        StringBuilder sb = new StringBuilder();
+        for (ClassPath cp : classPaths) {
+            if (cp == null) {
+                sb.append('-');
+            } else {
+                for (ClassPath.Entry entry : cp.entries()) {
+                    sb.append(entry.getURL()).append('\n');
+                }
+            }
+            sb.append('|');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The <code>FileObject</code> of the completed document
+     */
+    public FileObject getFileObject() {
+        return fo;
+    }
+
+    /**
+     * @return The fingerprint of the classpaths the session was built on
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return The completor of the document
+     */
+    public RhinoCompletor getCompletor() {
+        return completor;
+    }
+
+    /**
+     * @return False once a classpath of the document has changed or the
+     * session has been disposed
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return The evaluator of the document
+     */
+    public RhinoIncrementalEvaluator getEvaluator() {
+        return evaluator;
+    }
+
+    /**
+     * @return The type inferencer of the document
+     */
+    public RhinoTypeInferencer getInferencer() {
+        return inferencer;
+    }
+
+    /**
+     * Evaluate the document script, starting from the engine scope bindings
+     * left by the initialization. Only the statements changed since the
+     * previous evaluation, and the ones following them, are run
+     * @param script The script to evaluate
+     * @throws ScriptException If an error occurs while evaluating Rhino code
+     */
+    public void evaluate(CharSequence script) throws ScriptException {
+        evaluator.evaluate(script);
+    }
+
+    /**
+     * Evaluate the document script like {@link #evaluate(CharSequence)}, as
+     * long as a monitor lets the evaluation go on
+     * @param script The script to evaluate
+     * @param monitor The monitor of the evaluation
+     * @throws ScriptException If an error occurs while evaluating Rhino code
+     */
+    public void evaluate(CharSequence script, RhinoEvaluationMonitor monitor) throws ScriptException {
+        evaluator.evaluate(script, monitor);
+    }
+
+    /**
+     * Evaluate the beginning of the document like
+     * {@link #evaluate(CharSequence, RhinoEvaluationMonitor)}, reading again
+     * only the text changed since the previous evaluation
+     * @param document The document
+     * @param length The length of the beginning of the document to evaluate
+     * @param monitor The monitor of the evaluation
+     * @throws ScriptException If an error occurs while evaluating Rhino code
+     * @throws BadLocationException If the document is shorter than the length
+     */
+    public void evaluate(Document document, int length, RhinoEvaluationMonitor monitor)
+            throws ScriptException, BadLocationException {
+        evaluator.evaluate(getJournal(document), length, monitor);
+    }
+
+    /**
+     * @param document The document
+     * @return The journal of the document, started on first request
+     */
+    private synchronized RhinoDocumentJournal getJournal(Document document) {
+        if (journal == null || journal.getDocument() != document) {
+            if (journal != null) {
+                // The file was loaded again into a new document
+                journal.dispose();
+            }
+            journal = new RhinoDocumentJournal(document);
+        }
+        return journal;
+    }
+
+    /**
+     * Start a new completion query on the document, superseding the previous ones
+     * @return The generation of the new query
+     */
+    public long nextGeneration() {
+        return generation.incrementAndGet();
+    }
+
+    /**
+     * Record the start of a completion query on the document
+     * @return The milliseconds since the previous query started, or
+     * <code>Long.MAX_VALUE</code> if this is the first one
+     */
+    public long markQueryStart() {
+        long now = System.currentTimeMillis();
+        long previous = lastQueryMillis.getAndSet(now);
+        return previous == 0 ? Long.MAX_VALUE : now - previous;
+    }
+
+    /**
+     * @return The generation of the latest completion query
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @param queryGeneration The generation of a completion query
+     * @return True if no newer query has started since
+     */
+    public boolean isCurrent(long queryGeneration) {
+        return generation.get() == queryGeneration;
+    }
+
+    /**
+     * Mark the session as no longer valid, which cancels the evaluations
+     * running on it. Its resources are only released by {@link #dispose()}
+     */
+    public void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Release the resources held by the session, once the query running on
+     * it is over. The session is no longer valid afterwards
+     */
+    public void dispose() {
+        valid = false;
+        // Wait for a running query before giving the engine back
+        synchronized (this) {
+            completor.dispose();
+            if (journal != null) {
+                journal.dispose();
+            }
+        }
+        for (ClassPath cp : classPaths) {
+            if (cp != null) {
+                cp.removePropertyChangeListener(classPathListener);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.netbeans.spi.editor.completion.CompletionResultSet;
+
+/**
+ * The candidate sink handed to the rules by a completion query. It keeps only
+ * the most relevant candidates up to a limit, and each batch of candidates is
+ * turned into completion items as soon as its rule is done, rather than once
+ * all the rules are. The result set is marked as having additional items when
+ * candidates were left out.
+ * <p>
+ * The members and scope objects are more relevant than the classes and
+ * packages, which are more relevant than the constructors. Among candidates
+ * of the same rank, the shorter ones are closer to what has been typed.
+ * @author Adriano
+ */
+public final class RhinoCompletionSink implements RhinoCandidateSink {
+
+    /**
+     * Orders candidates from the most to the least relevant
+     */
+    private static final Comparator<RhinoCompletionCandidate> RELEVANCE =
+            new Comparator<RhinoCompletionCandidate>() {
+
+        @Override
+        public int compare(RhinoCompletionCandidate c1, RhinoCompletionCandidate c2) {
+            int result = c1.getKind().getRank() - c2.getKind().getRank();
+            if (result == 0) {
+                result = c1.getText().length() - c2.getText().length();
+            }
+            if (result == 0) {
+                result = c1.getSortKey().compareTo(c2.getSortKey());
+            }
+            return result;
+        }
+    };
+
+    private final CompletionResultSet resultSet;
+
+    private final int limit;
+
+    private final int wordStartOffset;
+
+    private final int caretOffset;
+
+    /**
+     * The candidates of the current batch, the least relevant first
+     */
+    private final PriorityQueue<RhinoCompletionCandidate> pending;
+
+    /**
+     * The candidates already turned into completion items
+     */
+    private final List<RhinoCompletionCandidate> flushed = new ArrayList<RhinoCompletionCandidate>();
+
+    /**
+     * The number of candidates left out or turned down
+     */
+    private int dropped;
+
+    /**
+     * (Constructor) Build a sink filling a completion result set
+     * @param resultSet The result set to fill
+     * @param limit The maximum number of candidates to keep
+     * @param wordStartOffset The document offset of the current line
+     * @param caretOffset The document offset of the caret
+     */
+    public RhinoCompletionSink(CompletionResultSet resultSet, int limit,
+            int wordStartOffset, int caretOffset) {
+        this.resultSet = resultSet;
+        this.limit = limit;
+        this.wordStartOffset = wordStartOffset;
+        this.caretOffset = caretOffset;
+        this.pending = new PriorityQueue<RhinoCompletionCandidate>(16,
+                Collections.reverseOrder(RELEVANCE));
+    }
+
+    @Override
+    public boolean accepts(String text, RhinoCompletionCandidate.Kind kind) {
+        if (!fits(new RhinoCompletionCandidate(text, kind, null))) {
+            dropped++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param candidate A candidate
+     * @return True if the candidate would be kept
+     */
+    private boolean fits(RhinoCompletionCandidate candidate) {
+        if (flushed.size() + pending.size() < limit) {
+            return true;
+        }
+        RhinoCompletionCandidate worst = pending.peek();
+        return worst != null && RELEVANCE.compare(candidate, worst) < 0;
+    }
+
+    @Override
+    public void add(RhinoCompletionCandidate candidate) {
+        if (!fits(candidate)) {
+            dropped++;
+            return;
+        }
+        pending.add(candidate);
+        if (flushed.size() + pending.size() > limit) {
+            pending.poll();
+            dropped++;
+        }
+    }
+
+    /**
+     * @return The number of candidates kept so far
+     */
+    public int size() {
+        return flushed.size() + pending.size();
+    }
+
+    /**
+     * @return The number of candidates left out or turned down so far
+     */
+    public int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Turn the current batch of candidates into completion items
+     * @param matchOffset The number of characters of the current line that
+     * the candidates of the batch replace
+     */
+    public void flush(int matchOffset) {
+        List<RhinoCompletionCandidate> batch = new ArrayList<RhinoCompletionCandidate>(pending);
+        pending.clear();
+        Collections.sort(batch, RELEVANCE);
+        List<RhinoCompletionItem> items = new ArrayList<RhinoCompletionItem>(batch.size());
+        for (RhinoCompletionCandidate candidate : batch) {
+            items.add(new RhinoCompletionItem(candidate, wordStartOffset + matchOffset, caretOffset));
+        }
+        resultSet.addAllItems(items);
+        flushed.addAll(batch);
+        if (dropped > 0) {
+            // So that the query runs again as the prefix gets narrower
+            resultSet.setHasAdditionalItems(true);
+        }
+    }
+}
@@ -13,23 +13,21 @@
 
 package org.netbeans.modules.jsrhinocontext;
 
-import java.util.Arrays;
-import java.util.EnumSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
-import javax.lang.model.element.TypeElement;
+import java.util.Map;
+import java.util.SortedSet;
 
 import javax.script.Bindings;
 import javax.script.ScriptContext;
 
 import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 import org.netbeans.api.java.classpath.ClassPath;
-import org.netbeans.api.java.source.ClassIndex;
-import org.netbeans.api.java.source.ClasspathInfo;
-import org.netbeans.api.java.source.ElementHandle;
+import org.netbeans.modules.jsrhinocontext.rules.BindingTypeIndex;
+import org.netbeans.modules.jsrhinocontext.rules.MemberChainResolver;
 import org.netbeans.modules.jsrhinocontext.rules.RhinoCompletionRule;
 import org.openide.filesystems.FileObject;
 
@@ -47,24 +45,53 @@ public class RhinoCompletor {
     protected ScriptEngine engine;
     
     /**
-     * The object referenced in the current instruction, or null
+     * The classloader enable to load classes in document classpath
      */
-    private Object lineObj;
+    protected ClassLoader cld;
     
     /**
-     * The classloader enable to load classes in document classpath
+     * The pool the engine was taken from
      */
-    protected ClassLoader cld;
+    private final RhinoEnginePool pool;
     
     /**
-     * All the names of the available classes and interfaces in a set
+     * The engine taken from the pool, to give back on disposal
      */
-    TreeSet javaNames;
+    private final ScriptEngine pooledEngine;
+    
+    /**
+     * All the names of the available classes and interfaces, shared with the
+     * other documents having the same classpaths
+     */
+    JavaTypeIndex typeIndex;
     
     /**
      * The set of rules to apply in automatic completion
      */
     private RhinoCompletionRule[] rules;
+    
+    /**
+     * The rules to apply for each kind of completion context, in order
+     */
+    private final Map<RhinoCompletionContext.Kind, List<RhinoCompletionRule>> dispatch =
+            new EnumMap<RhinoCompletionContext.Kind, List<RhinoCompletionRule>>(RhinoCompletionContext.Kind.class);
+    
+    /**
+     * The bindings by type, built once per completion since the
+     * evaluation before it
+     */
+    private BindingTypeIndex bindingTypeIndex;
+    
+    /**
+     * The Java types inferred for the variables of the script, by name
+     */
+    private Map<String, Class<?>> inferredTypes = Collections.emptyMap();
+    
+    /**
+     * The types of the member chains met so far, which only depend on the
+     * classpaths
+     */
+    private final MemberChainResolver memberChainResolver = new MemberChainResolver();
         
     /**
      * (Constructor) Build a completion suggestor for Rhino javascript engine derivated
@@ -73,46 +100,29 @@ public class RhinoCompletor {
      */
     public RhinoCompletor(FileObject fo) {
       
-        // Fill registry of java entity names
-        ClassPath bootCp = ClassPath.getClassPath(fo, ClassPath.BOOT);
-        ClassPath compileCp = ClassPath.getClassPath(fo, ClassPath.COMPILE);
-        ClassPath sourceCp = ClassPath.getClassPath(fo, ClassPath.SOURCE);
-        final ClasspathInfo info = ClasspathInfo.create(bootCp, compileCp, sourceCp);
-        Set<ElementHandle<TypeElement>> entities = info.getClassIndex().getDeclaredTypes("", ClassIndex.NameKind.PREFIX, EnumSet.of(ClassIndex.SearchScope.SOURCE, ClassIndex.SearchScope.DEPENDENCIES));
-        javaNames = fillJavaNames(entities);
-        
-        // Join classloaders on the document available classpaths
-        ClassLoader bootCl = bootCp.getClassLoader(true);
-        ClassLoader compileCl = compileCp.getClassLoader(true);
-        ClassLoader sourceCl = sourceCp.getClassLoader(true);
-        cld = new JoinClassLoader(Thread.currentThread().getContextClassLoader(), 
-                bootCl, compileCl, sourceCl
-        );
-        Thread.currentThread().setContextClassLoader(cld);
+        // Share the registry of java entity names
+        ClassPath[] classPaths = RhinoCompletionSession.getClassPaths(fo);
+        typeIndex = JavaTypeIndex.get(classPaths[0], classPaths[1], classPaths[2]);
         
-        // Create an instance of the Scripting manager using the joint classloader
-        ScriptEngineManager manager = new ScriptEngineManager(cld);
-        
-        // Get the reference to the rhino scripting engine.
-        engine = manager.getEngineByName("javascript"); 
+        // Share the classloader joining the document available classpaths,
+        // and get a ready rhino scripting engine
+        pool = RhinoEnginePool.get(classPaths);
+        cld = pool.getClassLoader();
+        pooledEngine = pool.acquire();
+        engine = pooledEngine;
     }
-       
+    
     /**
-     * @param entities The available Java entities from the classpath
-     * @param buffer The input buffer
-     * @param cursor The current cursor position
-     * @return All the names of the available classes and interfaces in a set
+     * Give the engine back to the pool. The completor is no longer usable
+     * afterwards
      */
-    private TreeSet fillJavaNames(Set<ElementHandle<TypeElement>> entities) {        
-        String[] names = new String[entities.size()];
-        int count = 0;
-        for (ElementHandle<TypeElement> ntt : entities) {
-            names[count++] = ntt.getQualifiedName();
-        }
-        
-        return new TreeSet(Arrays.asList(names));
+    public void dispose() {
+        pool.release(pooledEngine);
+        pool.dispose();
+        // Another completor may take the engine from now on
+        engine = null;
     }
-    
+       
     /**
      * @return The underlying script engine
      */
@@ -127,6 +137,70 @@ public class RhinoCompletor {
         this.engine = engine;
     }
     
+    /**
+     * @return The pool the engine was taken from
+     */
+    public RhinoEnginePool getEnginePool() {
+        return pool;
+    }
+    
+    /**
+     * @return The classloader enable to load classes in document classpath
+     */
+    public ClassLoader getClassLoader() {
+        return cld;
+    }
+    
+    /**
+     * Load a class by mean of the classloader of the document classpath
+     * @param className The fully qualified name of the class to load, or
+     * its simple name. When a simple name is shared by several classes, the
+     * first loadable one in alphabetical order of qualified names is returned
+     * @return The class corresponding to the given name
+     * @throws ClassNotFoundException  if the <code>className</code> is not
+     * resolvable
+     */
+    public Class<?> loadClass(String className) throws ClassNotFoundException {
+        try {
+            return loadQualifiedClass(className);
+        } catch (ClassNotFoundException e) {};
+        
+        for (String candidate : typeIndex.getQualifiedNames(className)) {
+            try {
+                return loadQualifiedClass(candidate);
+            } catch (ClassNotFoundException e) {};
+        }
+        throw new ClassNotFoundException(className);
+        
+    }
+    
+    /**
+     * Load a class by its qualified name, where nested classes may be
+     * separated from their enclosing class by a dot
+     * @param className The fully qualified name of the class to load
+     * @return The class corresponding to the given name
+     * @throws ClassNotFoundException  if the <code>className</code> is not
+     * resolvable
+     */
+    public Class<?> loadQualifiedClass(String className) throws ClassNotFoundException {
+        ClassLoader cl = cld;
+        try {
+            return cl.loadClass(className);
+        } catch (ClassNotFoundException e) {
+            // Try the binary names of nested classes, like java.util.Map$Entry
+            String binaryName = className;
+            int dot;
+            while ((dot = binaryName.lastIndexOf('.')) > 0
+                    && Character.isUpperCase(binaryName.charAt(binaryName.lastIndexOf('.', dot - 1) + 1))) {
+                binaryName = binaryName.substring(0, dot) + '$' + binaryName.substring(dot + 1);
+                try {
+                    return cl.loadClass(binaryName);
+                } catch (ClassNotFoundException ex) {};
+            }
+            throw e;
+        }
+    }
+    
     /**
      * @return The script context bindings from the engine scope
      */
@@ -145,26 +219,54 @@ public class RhinoCompletor {
 
     
     /**
-     * @return The names of the java entities in the classpath in a sorted set
+     * @return The Java types inferred for the variables of the script, by
+     * name. The engine scope bindings take precedence over them
      */
-    public TreeSet getJavaNames() {
-        return javaNames;
+    public Map<String, Class<?>> getInferredTypes() {
+        return inferredTypes;
     }
     
     /**
-     * @return The object identified as current invocation target, or null
+     * Set the Java types inferred for the variables of the script, for the
+     * rules to complete the variables not evaluated
+     * @param inferredTypes The Java types of the variables, by name
      */
-    public Object getLineObject() {
-        return lineObj;
+    public void setInferredTypes(Map<String, Class<?>> inferredTypes) {
+        this.inferredTypes = Collections.unmodifiableMap(inferredTypes);
+        bindingTypeIndex = null;
     }
     
     /**
-     * Set the object referenced by the current instruction line, called
-     * by any rule that manages to identify it
-     * @param The object identified as current invocation target, or null
+     * @return The engine scope bindings by the types their values can be
+     * passed as, built on first request since the last evaluation
      */
-    public void setLineObject(Object lineObj) {
-        this.lineObj = lineObj;
+    public BindingTypeIndex getBindingTypeIndex() {
+        if (bindingTypeIndex == null) {
+            bindingTypeIndex = new BindingTypeIndex(getEngineBindings(), inferredTypes);
+        }
+        return bindingTypeIndex;
+    }
+    
+    /**
+     * @return The resolver of the member chains, remembering their types
+     * across completions
+     */
+    public MemberChainResolver getMemberChainResolver() {
+        return memberChainResolver;
+    }
+    
+    /**
+     * @return The names of the java entities in the classpath in a sorted set
+     */
+    public SortedSet<String> getJavaNames() {
+        return typeIndex.getNames();
+    }
+    
+    /**
+     * @return The index of the java entities in the classpath
+     */
+    public JavaTypeIndex getJavaTypeIndex() {
+        return typeIndex;
     }
     
     /**
@@ -176,45 +278,92 @@ public class RhinoCompletor {
     
     /**
      * @param The set of rules to apply in automatic completion. Matching order 
-     * matters. The rules are applyed FIFO
+     * matters. The rules of the kind of a completion context are applyed FIFO,
+     * until one of them matches
      */
     public void setRules(RhinoCompletionRule[] rules) {
         this.rules = rules;
+        dispatch.clear();
+        for (RhinoCompletionContext.Kind kind : RhinoCompletionContext.Kind.values()) {
+            dispatch.put(kind, new ArrayList<RhinoCompletionRule>());
+        }
+        for (RhinoCompletionRule rule : rules) {
+            for (RhinoCompletionContext.Kind kind : rule.getContextKinds()) {
+                dispatch.get(kind).add(rule);
+            }
+        }
     }
     
 
     /**
-     * Fill the <code>candidates</code> list with the possible completion strings
+     * Fill the <code>candidates</code> list with the possible completion strings,
+     * each made of the text, the description and the context of a candidate
+     * joined by {@link #FIELD_SEPARATOR}
      * @param buffer The current line
      * @param cursor The cursor position at the current line
      * @param candidates The list of candidates for the autocompletion
      * @return the number of characters on the current line that partially matched
      * the available completion candidates
      * @throws ScriptException If an error occurs while evaluating Rhino code
+     * @see #completeCandidates(String, int, List)
      */
     public int complete(String buffer, int cursor, List<String> candidates) throws ScriptException {
-        // Offset the buffer to last space character,
-        // so that auto-completor is available not only at buffer start
-        // but every key point
-        int cursorOffset = 0;
-        String bufferOffset = "";
-        if (buffer.contains(" ") || buffer.contains("(")) {
-            int index = Math.max(buffer.lastIndexOf(" "),
-                    buffer.lastIndexOf("("));
-            bufferOffset = buffer.substring(0, index + 1);
-            String resetBuffer = buffer.substring(bufferOffset.length());
-            cursorOffset = buffer.length() - resetBuffer.length();
-            cursor = cursor - cursorOffset;
-            buffer = resetBuffer;
+        RhinoCandidateList typed = new RhinoCandidateList();
+        int matchOffset = complete(buffer, cursor, typed, null);
+        for (RhinoCompletionCandidate candidate : typed.getCandidates()) {
+            candidates.add(candidate.toString());
         }
+        return matchOffset;
+    }
+
+    /**
+     * Fill the <code>candidates</code> list with the possible completions
+     * @param buffer The current line
+     * @param cursor The cursor position at the current line
+     * @param candidates The list of candidates for the autocompletion
+     * @return the number of characters on the current line that partially matched
+     * the available completion candidates
+     * @throws ScriptException If an error occurs while evaluating Rhino code
+     */
+    public int completeCandidates(String buffer, int cursor,
+            List<RhinoCompletionCandidate> candidates) throws ScriptException {
+        RhinoCandidateList typed = new RhinoCandidateList();
+        int matchOffset = complete(buffer, cursor, typed, null);
+        candidates.addAll(typed.getCandidates());
+        return matchOffset;
+    }
 
-        String matchedPart = "";
-        lineObj = null;
-        for(RhinoCompletionRule rule : rules) {
-            matchedPart += rule.match(bufferOffset, buffer, cursor, candidates);
+    /**
+     * Fill a sink with the possible completions, flushing it after each rule
+     * @param buffer The current line
+     * @param cursor The cursor position at the current line
+     * @param sink The sink of the candidates for the autocompletion
+     * @return the number of characters on the current line that partially matched
+     * the available completion candidates
+     * @throws ScriptException If an error occurs while evaluating Rhino code
+     */
+    public int complete(String buffer, int cursor, RhinoCompletionSink sink) throws ScriptException {
+        return complete(buffer, cursor, sink, sink);
+    }
+
+    private int complete(String buffer, int cursor, RhinoCandidateSink candidates,
+            RhinoCompletionSink sink) throws ScriptException {
+        RhinoCompletionContext context = new RhinoCompletionContext(buffer, cursor);
+        int lineLength = context.getBufferOffset().length() + context.getBuffer().length();
+        bindingTypeIndex = null;
+        // Run the rules of the context kind until one of them matches
+        List<RhinoCompletionRule> kindRules = dispatch.get(context.getKind());
+        for (RhinoCompletionRule rule : kindRules) {
+            String matchedPart = rule.match(context, candidates);
+            int matchOffset = lineLength - (matchedPart == null ? 0 : matchedPart.length());
+            if (sink != null) {
+                // Show the candidates of the rule while the next ones run
+                sink.flush(matchOffset);
+            }
+            if (matchedPart != null) {
+                return matchOffset;
+            }
         }
-        
-        return bufferOffset.length() + buffer.length()
-                    - matchedPart.length();
+        return lineLength;
     }
 }
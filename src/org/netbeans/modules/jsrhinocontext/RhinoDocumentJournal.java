@@ -0,0 +1,121 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+/**
+ * Records where a document changed since it was last read, so that an
+ * evaluation only reads again the text from the first changed statement on.
+ * A journal listens to its document until it is disposed. Everything before
+ * the first changed offset is known to be the same as when the document was
+ * last read; everything after it is not.
+ * @author Adriano
+ */
+public final class RhinoDocumentJournal implements DocumentListener {
+
+    private final Document document;
+
+    /**
+     * The first offset changed since the last read, or
+     * <code>Integer.MAX_VALUE</code> if nothing changed
+     */
+    private int firstDirtyOffset = 0;
+
+    /**
+     * (Constructor) Build the journal of a document, starting with the whole
+     * document as changed
+     * @param document The document
+     */
+    public RhinoDocumentJournal(Document document) {
+        this.document = document;
+        document.addDocumentListener(this);
+    }
+
+    /**
+     * Stop listening to the document
+     */
+    public void dispose() {
+        document.removeDocumentListener(this);
+    }
+
+    /**
+     * @return The document of the journal
+     */
+    public Document getDocument() {
+        return document;
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        markDirty(e.getOffset());
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        markDirty(e.getOffset());
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        // Attributes only, the text is the same
+    }
+
+    private synchronized void markDirty(int offset) {
+        firstDirtyOffset = Math.min(firstDirtyOffset, offset);
+    }
+
+    /**
+     * @return The first offset changed since the last read, or
+     * <code>Integer.MAX_VALUE</code> if nothing changed
+     */
+    public synchronized int getFirstDirtyOffset() {
+        return firstDirtyOffset;
+    }
+
+    /**
+     * Read a part of the document and forget the changes recorded so far.
+     * The document must be locked for reading, so that it does not change
+     * between the decision of what to read and the read itself
+     * @param offset The offset of the part
+     * @param length The length of the part
+     * @return The text of the part
+     * @throws BadLocationException If the part is not within the document
+     */
+    public synchronized String read(int offset, int length) throws BadLocationException {
+        String text = document.getText(offset, length);
+        firstDirtyOffset = Integer.MAX_VALUE;
+        return text;
+    }
+
+    /**
+     * @param document A document
+     * @param offset The offset of a part of the document
+     * @param length The length of the part
+     * @return A view of the part, sharing the content of the document unless
+     * the part spans the gap of a gap content. It is only valid until the
+     * document next changes
+     * @throws BadLocationException If the part is not within the document
+     */
+    public static Segment view(Document document, int offset, int length)
+            throws BadLocationException {
+        Segment segment = new Segment();
+        document.getText(offset, length, segment);
+        return segment;
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+import org.netbeans.api.java.classpath.ClassPath;
+import org.netbeans.modules.jsrhinocontext.rules.ClassMetadata;
+import org.netbeans.modules.jsrhinocontext.rules.NativeResolver;
+import org.openide.filesystems.FileChangeAdapter;
+import org.openide.filesystems.FileChangeListener;
+import org.openide.filesystems.FileEvent;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileRenameEvent;
+import org.openide.filesystems.FileStateInvalidException;
+import org.openide.filesystems.FileSystem;
+import org.openide.filesystems.FileUtil;
+import org.openide.util.Exceptions;
+import org.openide.util.Lookup;
+import org.openide.util.RequestProcessor;
+import org.openide.util.WeakListeners;
+
+/**
+ * The script engines of the documents sharing the same classpaths, together
+ * with the class loader joining those classpaths. The engine factory is
+ * discovered once, and the engines released by the disposed sessions are kept
+ * ready for the next ones, up to the configured pool size. A pool outlives
+ * its last user for the configured idle timeout, so that a document closed
+ * and opened again gets its engines back.
+ * <p>
+ * The class loader remembers the classes it did not find. It forgets them
+ * whenever a file is created or changed under a classpath root, or the roots
+ * themselves change, so that classes compiled meanwhile are found.
+ * <p>
+ * Scripts can change the standard objects, like <code>Array.prototype</code>,
+ * which live outside the engine scope bindings. An engine whose standard
+ * objects changed is not kept, so that the changes do not leak to the next
+ * user.
+ * @author Adriano
+ */
+public final class RhinoEnginePool {
+
+    /**
+     * The pools in use, by classpath fingerprint
+     */
+    private static final Map<String, RhinoEnginePool> POOLS = new HashMap<String, RhinoEnginePool>();
+
+    /**
+     * The class loaders built by the pools, to tell how many are still alive
+     */
+    private static final List<Reference<ClassLoader>> LOADERS = new LinkedList<Reference<ClassLoader>>();
+
+    /**
+     * Drops the pools left unused
+     */
+    private static final RequestProcessor EVICTOR = new RequestProcessor("Rhino engine pool eviction", 1);
+
+    /**
+     * The standard constructors whose properties and prototype a script may
+     * change
+     */
+    private static final String[] STANDARD_CONSTRUCTORS = {
+        "Object", "Function", "Array", "String", "Number", "Boolean", "Date", "RegExp", "Error"
+    };
+
+    /**
+     * The standard objects a script may change, as a script object holding
+     * them by name
+     */
+    private static final String STANDARD_OBJECTS;
+
+    static {
+        StringBuilder sb = new StringBuilder("({ Math: Math");
+        for (String name : STANDARD_CONSTRUCTORS) {
+            sb.append(", ").append(name).append(": ").append(name)
+                    .append(", '").append(name).append(".prototype': ")
+                    .append(name).append(".prototype");
+        }
+        STANDARD_OBJECTS = sb.append(" })").toString();
+    }
+
+    /**
+     * Stands for a property of a standard object that cannot be read
+     */
+    private static final Object UNREADABLE = new Object();
+
+    private final String fingerprint;
+
+    /**
+     * The class loader joining the classpaths
+     */
+    private final JoinClassLoader loader;
+
+    private final ClassPath[] classPaths;
+
+    /**
+     * The classpath roots, as the folders or archive files seen by the file
+     * systems
+     */
+    private volatile Set<FileObject> watchedRoots = new HashSet<FileObject>();
+
+    /**
+     * The file systems of the classpath roots listened to so far
+     */
+    private final Set<FileSystem> watchedFileSystems = new HashSet<FileSystem>();
+
+    private final FileChangeListener rootsListener = new FileChangeAdapter() {
+
+        @Override
+        public void fileFolderCreated(FileEvent fe) {
+            fileChanged(fe);
+        }
+
+        @Override
+        public void fileDataCreated(FileEvent fe) {
+            fileChanged(fe);
+        }
+
+        @Override
+        public void fileRenamed(FileRenameEvent fe) {
+            fileChanged(fe);
+        }
+
+        @Override
+        public void fileChanged(FileEvent fe) {
+            FileObject file = fe.getFile();
+            for (FileObject root : watchedRoots) {
+                if (root.equals(file) || FileUtil.isParentOf(root, file)) {
+                    loader.forgetMissingResources();
+                    return;
+                }
+            }
+        }
+    };
+
+    private final PropertyChangeListener classPathListener = new PropertyChangeListener() {
+
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            if (ClassPath.PROP_ROOTS.equals(evt.getPropertyName())
+                    || ClassPath.PROP_ENTRIES.equals(evt.getPropertyName())) {
+                watchRoots();
+                loader.forgetMissingResources();
+            }
+        }
+    };
+
+    private ScriptEngineManager manager;
+
+    private ScriptEngineFactory factory;
+
+    private final LinkedList<ScriptEngine> idle = new LinkedList<ScriptEngine>();
+
+    /**
+     * The engine scope bindings of each engine right after its creation
+     */
+    private final Map<ScriptEngine, Map<String, Object>> pristine =
+            new IdentityHashMap<ScriptEngine, Map<String, Object>>();
+
+    /**
+     * The properties of the standard objects of each engine right after its
+     * creation
+     */
+    private final Map<ScriptEngine, Map<String, Map<String, Object>>> standard =
+            new IdentityHashMap<ScriptEngine, Map<String, Map<String, Object>>>();
+
+    private final RequestProcessor.Task eviction = EVICTOR.create(new Runnable() {
+
+        @Override
+        public void run() {
+            evict();
+        }
+    });
+
+    /**
+     * The number of users of the pool
+     */
+    private int users;
+
+    private int created;
+
+    private int reused;
+
+    private int discarded;
+
+    private int inUse;
+
+    private int peakInUse;
+
+    private long acquireNanos;
+
+    private RhinoEnginePool(String fingerprint, ClassPath[] classPaths) {
+        this.fingerprint = fingerprint;
+        ClassLoader bootCl = classPaths[0].getClassLoader(true);
+        ClassLoader compileCl = classPaths[1].getClassLoader(true);
+        ClassLoader sourceCl = classPaths[2].getClassLoader(true);
+        // Delegate to the system class loader rather than to whatever the
+        // context class loader of the calling thread happens to be
+        ClassLoader parent = Lookup.getDefault().lookup(ClassLoader.class);
+        if (parent == null) {
+            parent = RhinoEnginePool.class.getClassLoader();
+        }
+        this.loader = new JoinClassLoader(parent, bootCl, compileCl, sourceCl);
+        synchronized (LOADERS) {
+            LOADERS.add(new WeakReference<ClassLoader>(loader));
+        }
+        this.classPaths = classPaths;
+        for (ClassPath cp : classPaths) {
+            if (cp != null) {
+                cp.addPropertyChangeListener(WeakListeners.propertyChange(classPathListener, cp));
+            }
+        }
+        watchRoots();
+    }
+
+    /**
+     * Listen to the changes under the current roots of the classpaths
+     */
+    private void watchRoots() {
+        Set<FileObject> roots = new HashSet<FileObject>();
+        for (ClassPath cp : classPaths) {
+            if (cp == null) {
+                continue;
+            }
+            for (FileObject root : cp.getRoots()) {
+                FileObject archive = FileUtil.getArchiveFile(root);
+                roots.add(archive == null ? root : archive);
+            }
+        }
+        synchronized (watchedFileSystems) {
+            for (FileObject root : roots) {
+                try {
+                    FileSystem fs = root.getFileSystem();
+                    if (watchedFileSystems.add(fs)) {
+                        fs.addFileChangeListener(
+                                WeakListeners.create(FileChangeListener.class, rootsListener, fs));
+                    }
+                } catch (FileStateInvalidException e) {
+                    // The root is gone, its classes cannot appear
+                }
+            }
+        }
+        watchedRoots = roots;
+    }
+
+    /**
+     * Get the pool of a set of classpaths, building it if none is kept.
+     * Every call must be matched by a call to {@link #dispose()}
+     * @param classPaths The BOOT, COMPILE and SOURCE classpaths
+     * @return The pool of the classpaths
+     */
+    public static RhinoEnginePool get(ClassPath[] classPaths) {
+        String fingerprint = RhinoCompletionSession.fingerprint(classPaths);
+        synchronized (POOLS) {
+            RhinoEnginePool pool = POOLS.get(fingerprint);
+            if (pool == null) {
+                pool = new RhinoEnginePool(fingerprint, classPaths);
+                POOLS.put(fingerprint, pool);
+            }
+            pool.users++;
+            return pool;
+        }
+    }
+
+    /**
+     * Stop using the pool. Once it has no users left, the pool keeps its idle
+     * engines for the idle timeout, then drops them and is no longer shared
+     * @see RhinoCompletionOptions#getEnginePoolIdleTimeout()
+     */
+    public void dispose() {
+        synchronized (POOLS) {
+            if (--users > 0) {
+                return;
+            }
+        }
+        eviction.schedule(RhinoCompletionOptions.getEnginePoolIdleTimeout());
+    }
+
+    /**
+     * Drop the engines of the pool, unless it got a user again
+     */
+    private void evict() {
+        synchronized (POOLS) {
+            if (users > 0 || POOLS.get(fingerprint) != this) {
+                return;
+            }
+            POOLS.remove(fingerprint);
+        }
+        synchronized (this) {
+            idle.clear();
+            pristine.clear();
+            standard.clear();
+        }
+        // Nothing else should keep the class loader alive
+        ClassMetadata.purge(loader);
+        NativeResolver.purge(loader);
+    }
+
+    /**
+     * @return The number of class loaders built by the pools that have not
+     * been garbage collected yet, disposed pools included
+     */
+    public static int getLiveClassLoaders() {
+        synchronized (LOADERS) {
+            for (Iterator<Reference<ClassLoader>> it = LOADERS.iterator(); it.hasNext();) {
+                if (it.next().get() == null) {
+                    it.remove();
+                }
+            }
+            return LOADERS.size();
+        }
+    }
+
+    /**
+     * @return The class loader joining the classpaths of the pool
+     */
+    public ClassLoader getClassLoader() {
+        return loader;
+    }
+
+    /**
+     * Take an engine out of the pool, creating it if none is ready
+     * @return An engine, whose engine scope bindings are as they were right
+     * after its creation
+     */
+    public synchronized ScriptEngine acquire() {
+        long start = System.nanoTime();
+        ScriptEngine engine = idle.poll();
+        if (engine != null) {
+            reused++;
+        } else {
+            engine = create();
+            created++;
+        }
+        inUse++;
+        peakInUse = Math.max(peakInUse, inUse);
+        acquireNanos += System.nanoTime() - start;
+        return engine;
+    }
+
+    /**
+     * Give an engine back to the pool. Its engine scope bindings are reset to
+     * how they were right after its creation, and it is kept for reuse unless
+     * the pool is full or its standard objects changed
+     * @param engine An engine acquired from this pool
+     */
+    public synchronized void release(ScriptEngine engine) {
+        inUse--;
+        Map<String, Object> bindings = pristine.get(engine);
+        if (bindings == null) {
+            // The pool has been evicted meanwhile
+            return;
+        }
+        if (idle.size() >= RhinoCompletionOptions.getEnginePoolSize()) {
+            pristine.remove(engine);
+            standard.remove(engine);
+            return;
+        }
+        Bindings reset = engine.createBindings();
+        reset.putAll(bindings);
+        engine.setBindings(reset, ScriptContext.ENGINE_SCOPE);
+        Map<String, Map<String, Object>> before = standard.get(engine);
+        if (before == null || !before.equals(getStandardObjects(engine))) {
+            pristine.remove(engine);
+            standard.remove(engine);
+            discarded++;
+            return;
+        }
+        idle.add(engine);
+    }
+
+    /**
+     * @param engine An engine whose engine scope bindings do not hide the
+     * standard objects
+     * @return The properties of the standard objects of the engine, by object
+     * name and property name, the object itself being under the empty name.
+     * Only the type of primitive values is kept. Null if they cannot be read
+     */
+    private static Map<String, Map<String, Object>> getStandardObjects(ScriptEngine engine) {
+        try {
+            Object holder = engine.eval(STANDARD_OBJECTS);
+            Map<String, Map<String, Object>> properties = new HashMap<String, Map<String, Object>>();
+            for (Object key : NativeResolver.getIds(holder)) {
+                Object object = NativeResolver.get(holder, String.valueOf(key), UNREADABLE);
+                Map<String, Object> values = new HashMap<String, Object>();
+                values.put("", object);
+                for (Object id : NativeResolver.getAllIds(object)) {
+                    String name = String.valueOf(id);
+                    Object value = NativeResolver.get(object, name, UNREADABLE);
+                    if (value instanceof CharSequence || value instanceof Number
+                            || value instanceof Boolean) {
+                        // Like the last match of RegExp, which any use changes
+                        value = value.getClass();
+                    }
+                    values.put(name, value);
+                }
+                properties.put(String.valueOf(key), values);
+            }
+            return properties;
+        } catch (Exception e) {
+            Exceptions.printStackTrace(e);
+            return null;
+        }
+    }
+
+    /**
+     * @return A human readable summary of the usage of the pool
+     */
+    public synchronized String getStatistics() {
+        int acquired = created + reused;
+        return "Engines created: " + created + ", reused: " + reused
+                + ", discarded: " + discarded
+                + ", in use: " + inUse + " (peak " + peakInUse + "), idle: " + idle.size()
+                + ". Mean acquire time: "
+                + (acquired == 0 ? 0 : acquireNanos / acquired / 1000) + " us."
+                + " Live class loaders: " + getLiveClassLoaders() + ".";
+    }
+
+    private ScriptEngine create() {
+        ScriptEngine engine;
+        if (factory == null) {
+            // Discover the engine once, using the joint classloader
+            manager = new ScriptEngineManager(loader);
+            engine = manager.getEngineByName("javascript");
+            factory = engine.getFactory();
+        } else {
+            engine = factory.getScriptEngine();
+            engine.setBindings(manager.getBindings(), ScriptContext.GLOBAL_SCOPE);
+        }
+        pristine.put(engine, new HashMap<String, Object>(
+                engine.getBindings(ScriptContext.ENGINE_SCOPE)));
+        Map<String, Map<String, Object>> properties = getStandardObjects(engine);
+        if (properties != null) {
+            standard.put(engine, properties);
+        }
+        return engine;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.WeakHashMap;
+import javax.script.ScriptEngine;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.openide.util.Exceptions;
+
+/**
+ * Decides whether a running evaluation should go on, and stops it otherwise:
+ * when its result is no longer wanted, or when it runs out of its budget of
+ * instructions or time.
+ * <p>
+ * The evaluator checks the monitor between statements. Within a statement,
+ * an engine running the bundled Rhino finds the context the monitor entered
+ * on the thread, which reports every few thousand interpreted instructions,
+ * so that even a loop written on a single line is stopped. The copy of Rhino
+ * repackaged in the JDK is made to check the monitor on every line change
+ * and function call through a debug frame instead, and those are what its
+ * instructions count.
+ * @author Adriano
+ */
+public class RhinoEvaluationMonitor {
+
+    /**
+     * The packages of the Rhino flavours that can be hooked
+     */
+    private static final String[] RHINO_PACKAGES = new String[] {
+        "org.mozilla.javascript", "sun.org.mozilla.javascript.internal"
+    };
+
+    /**
+     * The monitor of the evaluation running on each thread
+     */
+    private static final ThreadLocal<RhinoEvaluationMonitor> CURRENT =
+            new ThreadLocal<RhinoEvaluationMonitor>();
+
+    /**
+     * The context factories already hooked
+     */
+    private static final Map<Object, Boolean> HOOKED = new WeakHashMap<Object, Boolean>();
+
+    private final long instructionBudget;
+
+    private final long timeBudget;
+
+    /**
+     * The instructions gone through so far
+     */
+    private long instructions;
+
+    private long deadline = Long.MAX_VALUE;
+
+    private volatile boolean cancelled;
+
+    private volatile String abortReason;
+
+    /**
+     * (Constructor) Build a monitor that lets the evaluation run until it is
+     * cancelled
+     */
+    public RhinoEvaluationMonitor() {
+        this(0, 0);
+    }
+
+    /**
+     * (Constructor) Build a monitor that stops the evaluation when it is
+     * cancelled or out of budget
+     * @param instructionBudget The instructions the evaluation may go
+     * through, or 0 for no limit
+     * @param timeBudget The milliseconds the evaluation may last, or 0 for
+     * no limit
+     */
+    public RhinoEvaluationMonitor(long instructionBudget, long timeBudget) {
+        this.instructionBudget = instructionBudget;
+        this.timeBudget = timeBudget;
+    }
+
+    /**
+     * Ask the monitored evaluation to stop as soon as possible
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return True if the evaluation should stop because its result is no
+     * longer wanted
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return True if the monitor stopped the evaluation before its end
+     */
+    public boolean isAborted() {
+        return abortReason != null;
+    }
+
+    /**
+     * @return Why the monitor stopped the evaluation, or null if it did not
+     */
+    public String getAbortReason() {
+        return abortReason;
+    }
+
+    /**
+     * Stop the evaluation if it should not go on
+     * @throws Abort To unwind the evaluation. Being an error, it is not
+     * caught by script <code>catch</code> blocks
+     */
+    void check() {
+        check(1);
+    }
+
+    /**
+     * Stop the evaluation if it should not go on
+     * @param cost The instructions gone through since the last check
+     * @throws Abort To unwind the evaluation
+     */
+    void check(long cost) {
+        if (isCancelled()) {
+            abort("Evaluation cancelled.");
+        }
+        instructions += cost;
+        if (instructionBudget > 0 && instructions > instructionBudget) {
+            abort("Instruction budget of " + instructionBudget + " exhausted.");
+        }
+        if (System.currentTimeMillis() > deadline) {
+            abort("Time budget of " + timeBudget + " ms exhausted.");
+        }
+    }
+
+    /**
+     * Stop the evaluation
+     * @param reason Why the evaluation is stopped
+     * @throws Abort Always
+     */
+    final void abort(String reason) {
+        abortReason = reason;
+        throw new Abort();
+    }
+
+    /**
+     * Make this the monitor of the evaluation running on the current thread,
+     * and start the clock of the time budget. A monitoring context is entered
+     * on the thread, which the engine then runs the scripts in. Every call
+     * must be matched by a call to {@link #exit()}
+     */
+    void enter() {
+        if (timeBudget > 0) {
+            deadline = System.currentTimeMillis() + timeBudget;
+        }
+        CURRENT.set(this);
+        RhinoMonitoringContextFactory.INSTANCE.enterContext();
+    }
+
+    /**
+     * Stop monitoring the evaluation running on the current thread
+     */
+    void exit() {
+        Context.exit();
+        CURRENT.remove();
+    }
+
+    /**
+     * @return The monitor of the evaluation running on the current thread, or
+     * null if there is none
+     */
+    static RhinoEvaluationMonitor current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Make the Rhino running an engine check the monitors from within the
+     * statements. Only the contexts entered while a monitor is current are
+     * affected
+     * @param engine The engine
+     */
+    static void hook(ScriptEngine engine) {
+        hook(engine.getClass().getClassLoader());
+        hook(RhinoEvaluationMonitor.class.getClassLoader());
+    }
+
+    private static void hook(ClassLoader loader) {
+        for (String pkg : RHINO_PACKAGES) {
+            try {
+                Class<?> factoryClass = Class.forName(pkg + ".ContextFactory", false, loader);
+                if (factoryClass == ContextFactory.class) {
+                    // The instruction observer of the monitoring contexts
+                    // does better than debug frames
+                    continue;
+                }
+                Object factory = factoryClass.getMethod("getGlobal").invoke(null);
+                synchronized (HOOKED) {
+                    if (HOOKED.containsKey(factory)) {
+                        continue;
+                    }
+                    HOOKED.put(factory, Boolean.TRUE);
+                }
+                Class<?> listenerClass = Class.forName(pkg + ".ContextFactory$Listener", false, loader);
+                Class<?> contextClass = Class.forName(pkg + ".Context", false, loader);
+                Class<?> debuggerClass = Class.forName(pkg + ".debug.Debugger", false, loader);
+                Class<?> frameClass = Class.forName(pkg + ".debug.DebugFrame", false, loader);
+
+                final Object frame = proxy(frameClass, new Handler() {
+
+                    @Override
+                    Object invoke(String name, Object[] args) {
+                        if (name.equals("onEnter") || name.equals("onLineChange")) {
+                            RhinoEvaluationMonitor monitor = CURRENT.get();
+                            if (monitor != null) {
+                                monitor.check();
+                            }
+                        }
+                        return null;
+                    }
+                });
+                final Object debugger = proxy(debuggerClass, new Handler() {
+
+                    @Override
+                    Object invoke(String name, Object[] args) {
+                        return name.equals("getFrame") ? frame : null;
+                    }
+                });
+                final Method setOptimizationLevel = contextClass.getMethod("setOptimizationLevel", Integer.TYPE);
+                final Method setGeneratingDebug = contextClass.getMethod("setGeneratingDebug", Boolean.TYPE);
+                final Method setDebugger = contextClass.getMethod("setDebugger", debuggerClass, Object.class);
+                Object listener = proxy(listenerClass, new Handler() {
+
+                    @Override
+                    Object invoke(String name, Object[] args) throws Exception {
+                        if (name.equals("contextCreated") && CURRENT.get() != null) {
+                            // Debug frames are only called by the interpreter
+                            // on code compiled with debug information
+                            setOptimizationLevel.invoke(args[0], -1);
+                            setGeneratingDebug.invoke(args[0], true);
+                            setDebugger.invoke(args[0], debugger, null);
+                        }
+                        return null;
+                    }
+                });
+                factoryClass.getMethod("addListener", listenerClass).invoke(factory, listener);
+            } catch (ClassNotFoundException e) {
+                // This flavour of Rhino is not around
+            } catch (Exception e) {
+                Exceptions.printStackTrace(e);
+            }
+        }
+    }
+
+    private static Object proxy(Class<?> intf, final Handler handler) {
+        return Proxy.newProxyInstance(intf.getClassLoader(), new Class<?>[] { intf },
+                new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (method.getDeclaringClass() == Object.class) {
+                    if (name.equals("equals")) {
+                        return proxy == args[0];
+                    } else if (name.equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    }
+                    return RhinoEvaluationMonitor.class.getName();
+                }
+                return handler.invoke(name, args);
+            }
+        });
+    }
+
+    /**
+     * Implements the interfaces of a Rhino flavour
+     */
+    private abstract static class Handler {
+
+        abstract Object invoke(String name, Object[] args) throws Exception;
+    }
+
+    /**
+     * Unwinds an evaluation stopped by its monitor
+     */
+    static final class Abort extends Error {
+
+        Abort() {
+            super("Evaluation aborted");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
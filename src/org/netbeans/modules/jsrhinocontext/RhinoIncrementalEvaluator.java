@@ -0,0 +1,380 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import javax.swing.text.BadLocationException;
+
+/**
+ * Evaluates a script one top-level statement at a time, checkpointing the
+ * engine scope bindings after each statement. On the next evaluation only the
+ * statements from the first changed one onward are run again, on top of the
+ * checkpoint taken right before it. A statement that ran out of budget is
+ * skipped until its text changes. Statements that only declare functions
+ * run before the others, as the functions are visible to the whole script.
+ * <p>
+ * Checkpoints are shallow: they record which objects the bindings refer to,
+ * not the state of those objects.
+ * @author Adriano
+ */
+public class RhinoIncrementalEvaluator {
+
+    /**
+     * Marks a binding removed by a statement in a checkpoint
+     */
+    private static final Object REMOVED = new Object();
+
+    private final RhinoCompletor completor;
+
+    /**
+     * The compiled statements, shared across evaluations
+     */
+    private final RhinoScriptCache cache;
+
+    /**
+     * The engine scope bindings before the first statement
+     */
+    private final Map<String, Object> pristine;
+
+    /**
+     * The statements of the last evaluated script
+     */
+    private List<RhinoScriptSegment> segments = Collections.emptyList();
+
+    /**
+     * The statements of the last evaluated script, in the order they run
+     */
+    private List<RhinoScriptSegment> evaluated = Collections.emptyList();
+
+    /**
+     * The length of the document text last evaluated through a journal, or
+     * -1 if the last evaluation did not go through one
+     */
+    private int journalLength = -1;
+
+    /**
+     * The changes each successfully evaluated statement made to the bindings
+     */
+    private final List<Map<String, Object>> checkpoints = new ArrayList<Map<String, Object>>();
+
+    /**
+     * The bindings after the last successfully evaluated statement
+     */
+    private Map<String, Object> state;
+
+    /**
+     * The text of the statements that ran out of budget, skipped until they
+     * change as they would run out of budget again
+     */
+    private final Set<String> aborted = new HashSet<String>();
+
+    private int lastReused;
+
+    private int lastEvaluated;
+
+    private int lastRead;
+
+    private int lastSkipped;
+
+    /**
+     * Whether the Rhino of the engine checks the monitors yet
+     */
+    private boolean hooked;
+
+    /**
+     * (Constructor) Build an evaluator
+     * @param completor The completor whose engine evaluates the statements
+     * @param pristine The engine scope bindings to start the evaluation from
+     */
+    public RhinoIncrementalEvaluator(RhinoCompletor completor, Map<String, Object> pristine) {
+        this.completor = completor;
+        this.cache = new RhinoScriptCache(RhinoCompletionOptions.getScriptCacheSize());
+        this.pristine = new HashMap<String, Object>(pristine);
+        this.state = new HashMap<String, Object>(pristine);
+    }
+
+    /**
+     * Evaluate a script, running again only the statements that changed since
+     * the previous evaluation, or follow a changed one. The engine scope
+     * bindings of the completor engine are replaced with the outcome.
+     * @param script The script to evaluate
+     * @throws ScriptException If an error occurs while evaluating Rhino code.
+     * The statements before the failing one are kept in the bindings
+     */
+    public void evaluate(CharSequence script) throws ScriptException {
+        evaluate(script, new RhinoEvaluationMonitor());
+    }
+
+    /**
+     * Evaluate a script like {@link #evaluate(CharSequence)}, as long as a
+     * monitor lets the evaluation go on. When the monitor stops it, the
+     * bindings are left as they were after the last completed statement
+     * @param script The script to evaluate
+     * @param monitor The monitor of the evaluation
+     * @throws ScriptException If an error occurs while evaluating Rhino code.
+     * The statements before the failing one are kept in the bindings
+     */
+    public void evaluate(CharSequence script, RhinoEvaluationMonitor monitor) throws ScriptException {
+        journalLength = -1;
+        lastRead = script.length();
+        evaluate(RhinoScriptSegment.split(script), monitor);
+    }
+
+    /**
+     * Evaluate the beginning of a document like
+     * {@link #evaluate(CharSequence, RhinoEvaluationMonitor)}. Only the text
+     * from the statement before the first one the journal reports as changed
+     * is read again; the statements before it are taken from the previous
+     * evaluation
+     * @param journal The journal of the document
+     * @param length The length of the beginning of the document to evaluate
+     * @param monitor The monitor of the evaluation
+     * @throws ScriptException If an error occurs while evaluating Rhino code.
+     * The statements before the failing one are kept in the bindings
+     * @throws BadLocationException If the document is shorter than the
+     * length
+     */
+    public void evaluate(final RhinoDocumentJournal journal, final int length,
+            RhinoEvaluationMonitor monitor) throws ScriptException, BadLocationException {
+        final List<RhinoScriptSegment> next = new ArrayList<RhinoScriptSegment>();
+        final BadLocationException[] failure = new BadLocationException[1];
+        // Keep the document from changing between the journal and the read
+        journal.getDocument().render(new Runnable() {
+
+            @Override
+            public void run() {
+                int dirty = Math.min(journal.getFirstDirtyOffset(),
+                        Math.min(length, Math.max(journalLength, 0)));
+                // The statement before the first changed one may be
+                // continued by the change, so it is split again too
+                int reused = 0;
+                while (reused < segments.size() && segments.get(reused).getOffset() <= dirty) {
+                    reused++;
+                }
+                reused = Math.max(0, reused - 2);
+                int offset = 0;
+                int line = 0;
+                if (reused > 0) {
+                    offset = segments.get(reused).getOffset();
+                    line = segments.get(reused).getLine();
+                }
+                try {
+                    String tail = journal.read(offset, length - offset);
+                    next.addAll(segments.subList(0, reused));
+                    next.addAll(RhinoScriptSegment.split(tail, offset, line));
+                    lastRead = tail.length();
+                } catch (BadLocationException ex) {
+                    failure[0] = ex;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        journalLength = length;
+        evaluate(next, monitor);
+    }
+
+    private void evaluate(List<RhinoScriptSegment> next, RhinoEvaluationMonitor monitor) throws ScriptException {
+        segments = next;
+        next = hoist(next);
+        int first = 0;
+        int limit = Math.min(checkpoints.size(), next.size());
+        while (first < limit
+                && evaluated.get(first).getText().equals(next.get(first).getText())) {
+            first++;
+        }
+        if (first < checkpoints.size()) {
+            restore(first);
+        }
+        evaluated = next;
+        lastReused = first;
+        lastEvaluated = 0;
+        lastSkipped = 0;
+        Set<String> texts = new HashSet<String>();
+        for (RhinoScriptSegment segment : next) {
+            texts.add(segment.getText());
+        }
+        aborted.retainAll(texts);
+        cache.resetStatistics();
+
+        ScriptEngine engine = completor.getEngine();
+        if (!hooked) {
+            RhinoEvaluationMonitor.hook(engine);
+            hooked = true;
+        }
+        Bindings bindings = engine.createBindings();
+        bindings.putAll(state);
+        engine.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+        RhinoScriptSegment running = null;
+        monitor.enter();
+        try {
+            for (int i = first; i < next.size(); i++) {
+                RhinoScriptSegment segment = next.get(i);
+                if (aborted.contains(segment.getText())) {
+                    lastSkipped++;
+                    checkpoint(bindings);
+                    continue;
+                }
+                monitor.check();
+                running = segment;
+                lastEvaluated++;
+                try {
+                    if (engine instanceof Compilable) {
+                        cache.compile((Compilable) engine, segment.getText()).eval(bindings);
+                    } else {
+                        engine.eval(segment.getText(), bindings);
+                    }
+                } catch (ScriptException ex) {
+                    throw segment.translate(ex);
+                } finally {
+                    bindings.remove("context");
+                }
+                running = null;
+                checkpoint(bindings);
+            }
+        } catch (RhinoEvaluationMonitor.Abort abort) {
+            if (running != null && !monitor.isCancelled()) {
+                aborted.add(running.getText());
+            }
+            // Drop whatever the interrupted statement did
+            bindings = engine.createBindings();
+            bindings.putAll(state);
+            engine.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+        } finally {
+            monitor.exit();
+        }
+    }
+
+    /**
+     * @param segments The statements of a script
+     * @return The statements in the order they run: the function
+     * declarations first, then the others, each in the order of the script
+     */
+    private static List<RhinoScriptSegment> hoist(List<RhinoScriptSegment> segments) {
+        List<RhinoScriptSegment> ordered = new ArrayList<RhinoScriptSegment>(segments.size());
+        for (RhinoScriptSegment segment : segments) {
+            if (segment.isDeclaration()) {
+                ordered.add(segment);
+            }
+        }
+        for (RhinoScriptSegment segment : segments) {
+            if (!segment.isDeclaration()) {
+                ordered.add(segment);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * @return The number of statements whose checkpoint was reused by the
+     * last evaluation
+     */
+    public int getLastReused() {
+        return lastReused;
+    }
+
+    /**
+     * @return The number of statements run by the last evaluation
+     */
+    public int getLastEvaluated() {
+        return lastEvaluated;
+    }
+
+    /**
+     * @return The cache of the compiled statements, whose statistics refer to
+     * the last evaluation
+     */
+    public RhinoScriptCache getScriptCache() {
+        return cache;
+    }
+
+    /**
+     * @return A human readable summary of the work done by the last evaluation
+     */
+    public String getStatistics() {
+        return "Statements reused: " + lastReused + ", evaluated: " + lastEvaluated
+                + ", skipped: " + lastSkipped
+                + ". Characters read: " + lastRead
+                + ". Compiled script cache hits: " + cache.getHits()
+                + ", misses: " + cache.getMisses() + ".";
+    }
+
+    /**
+     * Forget all checkpoints, so that the next evaluation runs the whole script
+     */
+    public void reset() {
+        restore(0);
+        segments = Collections.emptyList();
+        evaluated = Collections.emptyList();
+        aborted.clear();
+        journalLength = -1;
+    }
+
+    /**
+     * Record the changes the last statement made to the bindings
+     * @param bindings The bindings after the statement
+     */
+    private void checkpoint(Bindings bindings) {
+        Map<String, Object> delta = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : bindings.entrySet()) {
+            String key = entry.getKey();
+            if (!state.containsKey(key) || state.get(key) != entry.getValue()) {
+                delta.put(key, entry.getValue());
+            }
+        }
+        for (String key : state.keySet()) {
+            if (!bindings.containsKey(key)) {
+                delta.put(key, REMOVED);
+            }
+        }
+        apply(state, delta);
+        checkpoints.add(delta);
+    }
+
+    /**
+     * Bring the bindings state back to the checkpoint taken before a statement
+     * @param index The index of the statement
+     */
+    private void restore(int index) {
+        while (checkpoints.size() > index) {
+            checkpoints.remove(checkpoints.size() - 1);
+        }
+        state = new HashMap<String, Object>(pristine);
+        for (Map<String, Object> delta : checkpoints) {
+            apply(state, delta);
+        }
+    }
+
+    private static void apply(Map<String, Object> state, Map<String, Object> delta) {
+        for (Map.Entry<String, Object> entry : delta.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                state.remove(entry.getKey());
+            } else {
+                state.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import org.mozilla.javascript.ClassShutter;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.openide.util.Exceptions;
+
+/**
+ * Makes the contexts a monitored evaluation runs in. They interpret the
+ * script and report the instructions they go through to the monitor of the
+ * evaluation, so that even a loop written on a single line is stopped. The
+ * contexts otherwise look like the ones of the global factory, which the
+ * script engine sets up.
+ * @author Adriano
+ */
+final class RhinoMonitoringContextFactory extends ContextFactory {
+
+    /**
+     * The instructions a context goes through between two reports
+     */
+    static final int OBSERVER_THRESHOLD = 10000;
+
+    static final RhinoMonitoringContextFactory INSTANCE = new RhinoMonitoringContextFactory();
+
+    private static final Method MAKE_CONTEXT;
+
+    private static final Method HAS_FEATURE;
+
+    private static final Field CLASS_SHUTTER;
+
+    static {
+        Method makeContext = null;
+        Method hasFeature = null;
+        Field classShutter = null;
+        try {
+            makeContext = ContextFactory.class.getDeclaredMethod("makeContext");
+            makeContext.setAccessible(true);
+            hasFeature = ContextFactory.class.getDeclaredMethod("hasFeature", Context.class, Integer.TYPE);
+            hasFeature.setAccessible(true);
+            classShutter = Context.class.getDeclaredField("classShutter");
+            classShutter.setAccessible(true);
+        } catch (Exception e) {
+            Exceptions.printStackTrace(e);
+        }
+        MAKE_CONTEXT = makeContext;
+        HAS_FEATURE = hasFeature;
+        CLASS_SHUTTER = classShutter;
+    }
+
+    private RhinoMonitoringContextFactory() {
+    }
+
+    @Override
+    protected Context makeContext() {
+        Context cx = super.makeContext();
+        ContextFactory global = ContextFactory.getGlobal();
+        if (global != this && MAKE_CONTEXT != null) {
+            // Keep the Java access rules of the contexts of the engine
+            try {
+                Context model = (Context) MAKE_CONTEXT.invoke(global);
+                cx.setWrapFactory(model.getWrapFactory());
+                cx.setLanguageVersion(model.getLanguageVersion());
+                ClassShutter shutter = (ClassShutter) CLASS_SHUTTER.get(model);
+                if (shutter != null) {
+                    cx.setClassShutter(shutter);
+                }
+            } catch (Exception e) {
+                Exceptions.printStackTrace(e);
+            }
+        }
+        // Only the interpreter counts instructions
+        cx.setOptimizationLevel(-1);
+        cx.setInstructionObserverThreshold(OBSERVER_THRESHOLD);
+        return cx;
+    }
+
+    @Override
+    protected boolean hasFeature(Context cx, int featureIndex) {
+        ContextFactory global = ContextFactory.getGlobal();
+        if (global != this && HAS_FEATURE != null) {
+            try {
+                return (Boolean) HAS_FEATURE.invoke(global, cx, featureIndex);
+            } catch (Exception e) {
+                Exceptions.printStackTrace(e);
+            }
+        }
+        return super.hasFeature(cx, featureIndex);
+    }
+
+    @Override
+    protected void observeInstructionCount(Context cx, int instructionCount) {
+        RhinoEvaluationMonitor monitor = RhinoEvaluationMonitor.current();
+        if (monitor != null) {
+            monitor.check(instructionCount);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+
+/**
+ * A size bounded cache of compiled scripts, keyed by a hash of their source.
+ * The least recently used script is evicted first.
+ * @author Adriano
+ */
+public class RhinoScriptCache {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Map<String, CompiledScript> scripts;
+
+    private int hits;
+
+    private int misses;
+
+    /**
+     * (Constructor) Build an empty cache
+     * @param maxSize The maximum number of compiled scripts to keep
+     */
+    public RhinoScriptCache(final int maxSize) {
+        this.scripts = new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the compiled form of a script, compiling it only when no script with
+     * the same source has been compiled before
+     * @param compilable The engine compiling the script
+     * @param source The source of the script
+     * @return The compiled script
+     * @throws ScriptException If the script does not compile
+     */
+    public synchronized CompiledScript compile(Compilable compilable, String source) throws ScriptException {
+        String key = hash(source);
+        CompiledScript script = scripts.get(key);
+        if (script != null) {
+            hits++;
+            return script;
+        }
+        misses++;
+        script = compilable.compile(source);
+        scripts.put(key, script);
+        return script;
+    }
+
+    /**
+     * @return The number of lookups answered from the cache since the last
+     * reset of the statistics
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of lookups that needed a compilation since the last
+     * reset of the statistics
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of compiled scripts in the cache
+     */
+    public synchronized int size() {
+        return scripts.size();
+    }
+
+    /**
+     * Start counting hits and misses again
+     */
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+    }
+
+    /**
+     * Drop all the compiled scripts
+     */
+    public synchronized void clear() {
+        scripts.clear();
+    }
+
+    /**
+     * @param source The source of a script
+     * @return The SHA-1 digest of the source as a hexadecimal string
+     */
+    static String hash(String source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to provide SHA-1
+            throw new IllegalStateException(ex);
+        }
+        int length = source.length();
+        byte[] chars = new byte[2 * length];
+        for (int i = 0; i < length; i++) {
+            char c = source.charAt(i);
+            chars[2 * i] = (byte) (c >> 8);
+            chars[2 * i + 1] = (byte) c;
+        }
+        byte[] bytes = digest.digest(chars);
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.script.ScriptException;
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Node;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.ScriptOrFnNode;
+import org.mozilla.javascript.Token;
+
+/**
+ * A top-level statement of a script, the unit of incremental evaluation.
+ * Splitting looks for the semicolons and closing braces that may end a
+ * statement, and only cuts there when the text so far parses and is not
+ * continued by an <code>else</code>, so that several statements may share a
+ * segment but a statement is never split across two of them. A segment made
+ * of function declarations only is told apart, since the script sees those
+ * functions before any of its statements runs.
+ * @author Adriano
+ */
+public class RhinoScriptSegment {
+
+    /**
+     * Characters that, starting the line after a closing brace, continue the
+     * expression the brace belongs to
+     */
+    private static final String CONTINUATION_CHARS = ".,;:?()[]}+-*/%&|^=<>!";
+
+    /**
+     * Keywords that, starting the line after a closing brace, continue the
+     * statement the brace belongs to
+     */
+    private static final String[] CONTINUATION_KEYWORDS = new String[] {
+        "else", "catch", "finally", "while"
+    };
+
+    /**
+     * Characters after which a slash starts a regular expression literal
+     * rather than a division
+     */
+    private static final String REGEXP_PRECEDING_CHARS = "(,=:[!&|?{};+-*%<>~^";
+
+    private final String text;
+
+    private final int offset;
+
+    private final int line;
+
+    private final boolean declaration;
+
+    /**
+     * (Constructor) Build a segment
+     * @param text The source of the segment
+     * @param offset The offset of the segment in the script
+     * @param line The zero based line of the script where the segment starts
+     */
+    public RhinoScriptSegment(String text, int offset, int line) {
+        this(text, offset, line, false);
+    }
+
+    /**
+     * (Constructor) Build a segment
+     * @param text The source of the segment
+     * @param offset The offset of the segment in the script
+     * @param line The zero based line of the script where the segment starts
+     * @param declaration True if the segment only declares functions
+     */
+    public RhinoScriptSegment(String text, int offset, int line, boolean declaration) {
+        this.text = text;
+        this.offset = offset;
+        this.line = line;
+        this.declaration = declaration;
+    }
+
+    /**
+     * @return The source of the segment
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return The offset of the segment in the script
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The zero based line of the script where the segment starts
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * @return True if the segment only declares functions, which are hoisted
+     * over the statements before it
+     */
+    public boolean isDeclaration() {
+        return declaration;
+    }
+
+    /**
+     * Move the line number of an exception raised by the evaluation of this
+     * segment from the segment to the whole script
+     * @param ex The exception raised evaluating the segment alone
+     * @return An equivalent exception, relative to the whole script
+     */
+    public ScriptException translate(ScriptException ex) {
+        if (ex.getLineNumber() < 0 || line == 0) {
+            return ex;
+        }
+        String message = ex.getMessage();
+        String location = "";
+        if (ex.getFileName() != null) {
+            location = " in " + ex.getFileName() + " at line number " + ex.getLineNumber();
+            if (ex.getColumnNumber() != -1) {
+                location += " at column number " + ex.getColumnNumber();
+            }
+        }
+        if (message != null && location.length() > 0 && message.endsWith(location)) {
+            message = message.substring(0, message.length() - location.length());
+        }
+        ScriptException translated = new ScriptException(message,
+                ex.getFileName(), ex.getLineNumber() + line, ex.getColumnNumber());
+        translated.initCause(ex);
+        return translated;
+    }
+
+    /**
+     * Split a script into its top-level statements. Whitespace-only segments
+     * are dropped
+     * @param script The script to split
+     * @return The segments of the script, in order
+     */
+    public static List<RhinoScriptSegment> split(CharSequence script) {
+        return split(script, 0, 0);
+    }
+
+    /**
+     * Split the end of a script into its top-level statements, like
+     * {@link #split(CharSequence)}
+     * @param script The end of the script, starting where a segment starts
+     * @param offset The offset of the end in the whole script
+     * @param firstLine The zero based line of the whole script where the end
+     * starts
+     * @return The segments of the end, placed in the whole script
+     */
+    public static List<RhinoScriptSegment> split(CharSequence script, int offset, int firstLine) {
+        List<RhinoScriptSegment> segments = new ArrayList<RhinoScriptSegment>();
+        int length = script.length();
+        int depth = 0;
+        int start = 0;
+        int startLine = firstLine;
+        int line = firstLine;
+        char last = 0;
+        int i = 0;
+        while (i < length) {
+            char c = script.charAt(i);
+            char next = i + 1 < length ? script.charAt(i + 1) : 0;
+            if (c == '/' && next == '/') {
+                while (i < length && script.charAt(i) != '\n') {
+                    i++;
+                }
+                continue;
+            }
+            if (c == '/' && next == '*') {
+                i += 2;
+                while (i < length && !(script.charAt(i) == '*'
+                        && i + 1 < length && script.charAt(i + 1) == '/')) {
+                    if (script.charAt(i) == '\n') {
+                        line++;
+                    }
+                    i++;
+                }
+                i += 2;
+                continue;
+            }
+            if (c == '"' || c == '\'' || (c == '/'
+                    && (last == 0 || REGEXP_PRECEDING_CHARS.indexOf(last) != -1))) {
+                i = skipLiteral(script, i, c);
+                last = c;
+                continue;
+            }
+            if (c == '\n') {
+                line++;
+                if (depth == 0 && last == '}' && !continues(script, i + 1)
+                        && add(segments, script, offset, start, i + 1, startLine, false)) {
+                    start = i + 1;
+                    startLine = line;
+                    last = 0;
+                }
+                i++;
+                continue;
+            }
+            if (c == '(' || c == '[' || c == '{') {
+                depth++;
+            } else if (c == ')' || c == ']' || c == '}') {
+                depth = Math.max(0, depth - 1);
+            }
+            if (!Character.isWhitespace(c)) {
+                last = c;
+            }
+            i++;
+            if (c == ';' && depth == 0 && !startsWith(script, i, "else")
+                    && add(segments, script, offset, start, i, startLine, false)) {
+                start = i;
+                startLine = line;
+                last = 0;
+            }
+        }
+        add(segments, script, offset, start, length, startLine, true);
+        return segments;
+    }
+
+    /**
+     * Skip a string or regular expression literal
+     * @param script The script being split
+     * @param i The offset of the opening quote
+     * @param quote The quote character
+     * @return The offset following the closing quote, or the end of line for
+     * an unterminated literal
+     */
+    private static int skipLiteral(CharSequence script, int i, char quote) {
+        int length = script.length();
+        i++;
+        while (i < length) {
+            char c = script.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '\n') {
+                return i;
+            }
+            i++;
+            if (c == quote) {
+                break;
+            }
+        }
+        return Math.min(i, length);
+    }
+
+    /**
+     * @param script The script being split
+     * @param from The offset of the line following a closing brace
+     * @return True if the statement ending with the brace continues on the
+     * next non-blank line
+     */
+    private static boolean continues(CharSequence script, int from) {
+        int length = script.length();
+        int i = from;
+        while (i < length && Character.isWhitespace(script.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return false;
+        }
+        char c = script.charAt(i);
+        if (CONTINUATION_CHARS.indexOf(c) != -1) {
+            // A comment does not continue anything
+            return !(c == '/' && i + 1 < length
+                    && (script.charAt(i + 1) == '/' || script.charAt(i + 1) == '*'));
+        }
+        for (String keyword : CONTINUATION_KEYWORDS) {
+            if (startsWith(script, i, keyword)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param script The script being split
+     * @param from An offset of the script
+     * @param keyword A keyword
+     * @return True if the first word after the offset is the keyword
+     */
+    private static boolean startsWith(CharSequence script, int from, String keyword) {
+        int length = script.length();
+        int i = from;
+        while (i < length && Character.isWhitespace(script.charAt(i))) {
+            i++;
+        }
+        int end = i + keyword.length();
+        return end <= length && keyword.contentEquals(script.subSequence(i, end))
+                && (end == length || !Character.isJavaIdentifierPart(script.charAt(end)));
+    }
+
+    /**
+     * Add a segment, unless it is blank or may be an unfinished statement
+     * @param force True to add the segment even if it does not parse
+     * @return False if the segment was not added, because it does not parse
+     * and the error is on its last line, like a <code>do</code> loop before
+     * its <code>while</code>
+     */
+    private static boolean add(List<RhinoScriptSegment> segments, CharSequence script,
+            int offset, int start, int end, int line, boolean force) {
+        // The one based line of the last non blank character, or 0
+        int lastLine = 0;
+        int lines = 1;
+        for (int i = start; i < end; i++) {
+            char c = script.charAt(i);
+            if (c == '\n') {
+                lines++;
+            } else if (!Character.isWhitespace(c)) {
+                lastLine = lines;
+            }
+        }
+        if (lastLine == 0) {
+            return true;
+        }
+        String text = script.subSequence(start, end).toString();
+        ScriptOrFnNode tree = null;
+        try {
+            CompilerEnvirons env = new CompilerEnvirons();
+            tree = new Parser(env, env.getErrorReporter()).parse(text, "", 1);
+        } catch (EvaluatorException e) {
+            if (!force && e.lineNumber() >= lastLine) {
+                return false;
+            }
+            // A syntax error the evaluation will report
+        }
+        segments.add(new RhinoScriptSegment(text, offset + start, line, isDeclaration(tree)));
+        return true;
+    }
+
+    /**
+     * @param tree The parse tree of a segment, or null
+     * @return True if the segment is made of function declarations only
+     */
+    private static boolean isDeclaration(ScriptOrFnNode tree) {
+        if (tree == null || tree.getFirstChild() == null) {
+            return false;
+        }
+        for (Node child = tree.getFirstChild(); child != null; child = child.getNext()) {
+            if (child.getType() != Token.FUNCTION) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.FunctionNode;
+import org.mozilla.javascript.Node;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.ScriptOrFnNode;
+import org.mozilla.javascript.Token;
+import org.netbeans.modules.jsrhinocontext.rules.ClassMetadata;
+
+/**
+ * Infers the Java types of the variables of a script without running it, by
+ * walking the parse tree of each of its statements in order. A variable gets
+ * the type of the Java object it is assigned: an instance created with
+ * <code>new</code>, or the value of a Java method or field. Classes are named
+ * by their qualified name, through <code>Packages</code>, or by their simple
+ * name once imported with <code>importClass</code>,
+ * <code>importPackage</code> or a <code>JavaImporter</code>.
+ * <p>
+ * The inference is flow insensitive: the last assignment of a variable wins,
+ * wherever it is. The parameters of a function and the variables it declares
+ * are local to it: their types hold while its body is walked, and are not
+ * part of the inferred types of the script.
+ * @author Adriano
+ */
+public class RhinoTypeInferencer {
+
+    /**
+     * The top level packages Rhino makes available without
+     * <code>Packages</code>
+     */
+    private static final List<String> TOP_LEVEL_PACKAGES = Arrays.asList(
+            "java", "javax", "org", "com", "edu", "net");
+
+    /**
+     * Reports syntax errors as exceptions
+     */
+    private static final ErrorReporter REPORTER = new ErrorReporter() {
+
+        @Override
+        public void warning(String message, String sourceName, int line,
+                String lineSource, int lineOffset) {
+        }
+
+        @Override
+        public void error(String message, String sourceName, int line,
+                String lineSource, int lineOffset) {
+            throw runtimeError(message, sourceName, line, lineSource, lineOffset);
+        }
+
+        @Override
+        public EvaluatorException runtimeError(String message, String sourceName,
+                int line, String lineSource, int lineOffset) {
+            return new EvaluatorException(message, sourceName, line, lineSource, lineOffset);
+        }
+    };
+
+    /**
+     * Marks a statement that could not be parsed
+     */
+    private static final ScriptOrFnNode UNPARSABLE = new ScriptOrFnNode(Token.SCRIPT);
+
+    private final RhinoCompletor completor;
+
+    /**
+     * The parse trees of the statements, by source
+     */
+    private final Map<String, ScriptOrFnNode> trees;
+
+    /**
+     * The packages imported by the script being walked
+     */
+    private final List<String> packages = new ArrayList<String>();
+
+    /**
+     * The classes imported by the script being walked, by simple name
+     */
+    private final Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+
+    /**
+     * The types inferred for the variables of the script being walked
+     */
+    private final Map<String, Class<?>> types = new LinkedHashMap<String, Class<?>>();
+
+    /**
+     * The local variables of the functions being walked, innermost first.
+     * Every local name is a key, mapped to null while its type is unknown
+     */
+    private final LinkedList<Map<String, Class<?>>> scopes = new LinkedList<Map<String, Class<?>>>();
+
+    private long lastInferenceNanos;
+
+    private int lastUnparsable;
+
+    /**
+     * (Constructor) Build the type inferencer of a document
+     * @param completor The completor whose classpath the types come from
+     */
+    public RhinoTypeInferencer(RhinoCompletor completor) {
+        this.completor = completor;
+        final int size = RhinoCompletionOptions.getScriptCacheSize();
+        this.trees = new LinkedHashMap<String, ScriptOrFnNode>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ScriptOrFnNode> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * Infer the types of the variables of a script
+     * @param script The script
+     * @return The Java types of the variables, by name. Variables holding
+     * anything but Java objects are left out
+     */
+    public synchronized Map<String, Class<?>> infer(CharSequence script) {
+        long start = System.nanoTime();
+        packages.clear();
+        classes.clear();
+        types.clear();
+        lastUnparsable = 0;
+        for (RhinoScriptSegment segment : RhinoScriptSegment.split(script)) {
+            ScriptOrFnNode tree = parse(segment.getText());
+            if (tree == UNPARSABLE) {
+                lastUnparsable++;
+            } else {
+                walk(tree);
+            }
+        }
+        lastInferenceNanos = System.nanoTime() - start;
+        return new LinkedHashMap<String, Class<?>>(types);
+    }
+
+    /**
+     * @return A human readable summary of the last inference
+     */
+    public synchronized String getStatistics() {
+        return "Inferred " + types.size() + " variable types in "
+                + (lastInferenceNanos / 1000000) + " ms, "
+                + lastUnparsable + " statements not parsed.";
+    }
+
+    private ScriptOrFnNode parse(String source) {
+        ScriptOrFnNode tree = trees.get(source);
+        if (tree == null) {
+            try {
+                CompilerEnvirons env = new CompilerEnvirons();
+                env.setErrorReporter(REPORTER);
+                tree = new Parser(env, REPORTER).parse(source, "", 1);
+            } catch (EvaluatorException e) {
+                tree = UNPARSABLE;
+            }
+            trees.put(source, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Walk a parse tree in source order, functions included
+     * @param node The root of the tree
+     */
+    private void walk(Node node) {
+        switch (node.getType()) {
+            case Token.VAR:
+            case Token.CONST:
+                // Each declared name holds its initializer, if any
+                for (Node name = node.getFirstChild(); name != null; name = name.getNext()) {
+                    if (name.getType() == Token.NAME && name.getFirstChild() != null) {
+                        assign(name.getString(), name.getFirstChild());
+                    }
+                }
+                break;
+            case Token.SETNAME:
+                assign(node.getFirstChild().getString(), node.getLastChild());
+                break;
+            case Token.CALL:
+                Node callee = node.getFirstChild();
+                if (callee.getType() == Token.NAME) {
+                    if (callee.getString().equals("importPackage")) {
+                        for (Node arg = callee.getNext(); arg != null; arg = arg.getNext()) {
+                            importPackage(arg);
+                        }
+                    } else if (callee.getString().equals("importClass")) {
+                        for (Node arg = callee.getNext(); arg != null; arg = arg.getNext()) {
+                            importClass(arg);
+                        }
+                    }
+                }
+                break;
+            case Token.NEW:
+                if (node.getFirstChild().getType() == Token.NAME
+                        && node.getFirstChild().getString().equals("JavaImporter")) {
+                    // Classes and packages of the importer are seen as
+                    // imported everywhere
+                    for (Node arg = node.getFirstChild().getNext(); arg != null; arg = arg.getNext()) {
+                        if (!importClass(arg)) {
+                            importPackage(arg);
+                        }
+                    }
+                }
+                break;
+            default:
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNext()) {
+            walk(child);
+        }
+        if (node instanceof ScriptOrFnNode) {
+            ScriptOrFnNode script = (ScriptOrFnNode) node;
+            for (int i = 0; i < script.getFunctionCount(); i++) {
+                walkFunction(script.getFunctionNode(i));
+            }
+        }
+    }
+
+    /**
+     * Walk a function within the scope of its parameters and variables
+     * @param function The function
+     */
+    private void walkFunction(FunctionNode function) {
+        Map<String, Class<?>> scope = new HashMap<String, Class<?>>();
+        if (function.getSymbolTable() != null) {
+            for (Object name : function.getSymbolTable().keySet()) {
+                scope.put((String) name, null);
+            }
+        }
+        scopes.addFirst(scope);
+        try {
+            walk(function);
+        } finally {
+            scopes.removeFirst();
+        }
+    }
+
+    /**
+     * @param name The name of a variable
+     * @return The scope of the innermost function declaring the variable, or
+     * null if it is a variable of the script
+     */
+    private Map<String, Class<?>> getScope(String name) {
+        for (Map<String, Class<?>> scope : scopes) {
+            if (scope.containsKey(name)) {
+                return scope;
+            }
+        }
+        return null;
+    }
+
+    private void assign(String name, Node value) {
+        Class<?> type = inferType(value);
+        Map<String, Class<?>> scope = getScope(name);
+        if (scope != null) {
+            scope.put(name, type);
+        } else if (type != null) {
+            types.put(name, type);
+        } else {
+            types.remove(name);
+        }
+    }
+
+    private void importPackage(Node node) {
+        String name = getDottedName(node);
+        if (name != null && !packages.contains(name)) {
+            packages.add(name);
+        }
+    }
+
+    /**
+     * @return True if the node names a class, which is then imported
+     */
+    private boolean importClass(Node node) {
+        Class<?> clazz = resolveClass(node);
+        if (clazz != null) {
+            classes.put(clazz.getSimpleName(), clazz);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param node An expression
+     * @return The Java type of the value of the expression, or null if it is
+     * unknown or not a Java object
+     */
+    private Class<?> inferType(Node node) {
+        switch (node.getType()) {
+            case Token.NEW:
+                return resolveClass(node.getFirstChild());
+            case Token.NAME: {
+                Map<String, Class<?>> scope = getScope(node.getString());
+                return (scope != null ? scope : types).get(node.getString());
+            }
+            case Token.GETPROP: {
+                Node target = node.getFirstChild();
+                String member = node.getLastChild().getString();
+                Class<?> type = inferType(target);
+                if (type != null) {
+                    return getFieldType(type, member, false);
+                }
+                return getFieldType(resolveClass(target), member, true);
+            }
+            case Token.CALL: {
+                Node callee = node.getFirstChild();
+                if (callee.getType() != Token.GETPROP) {
+                    return null;
+                }
+                int arity = 0;
+                for (Node arg = callee.getNext(); arg != null; arg = arg.getNext()) {
+                    arity++;
+                }
+                Node target = callee.getFirstChild();
+                String member = callee.getLastChild().getString();
+                Class<?> type = inferType(target);
+                if (type != null) {
+                    return getReturnType(type, member, arity, false);
+                }
+                return getReturnType(resolveClass(target), member, arity, true);
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static Class<?> getFieldType(Class<?> clazz, String name, boolean statics) {
+        if (clazz == null) {
+            return null;
+        }
+        ClassMetadata metadata = ClassMetadata.get(clazz);
+        List<ClassMetadata.MemberInfo> fields = new ArrayList<ClassMetadata.MemberInfo>(
+                metadata.getStaticFields(name));
+        if (!statics) {
+            fields.addAll(metadata.getInstanceFields(name));
+        }
+        for (ClassMetadata.MemberInfo field : fields) {
+            if (field.getName().equals(name)) {
+                return javaObject(((Field) field.getMember()).getType());
+            }
+        }
+        return null;
+    }
+
+    private static Class<?> getReturnType(Class<?> clazz, String name, int arity, boolean statics) {
+        if (clazz == null) {
+            return null;
+        }
+        ClassMetadata metadata = ClassMetadata.get(clazz);
+        List<ClassMetadata.MemberInfo> methods = new ArrayList<ClassMetadata.MemberInfo>(
+                metadata.getMethods(name, true));
+        if (!statics) {
+            methods.addAll(metadata.getMethods(name, false));
+        }
+        for (ClassMetadata.MemberInfo meth : methods) {
+            if (meth.getParameterTypes().length == arity) {
+                return javaObject(((Method) meth.getMember()).getReturnType());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rhino turns the primitives returned by Java into script values
+     */
+    private static Class<?> javaObject(Class<?> type) {
+        return type.isPrimitive() ? null : type;
+    }
+
+    /**
+     * @param node An expression
+     * @return The class the expression names, or null if it does not name one
+     */
+    private Class<?> resolveClass(Node node) {
+        String name = getDottedName(node);
+        if (name == null) {
+            return null;
+        }
+        if (name.indexOf('.') < 0) {
+            if (classes.containsKey(name)) {
+                return classes.get(name);
+            }
+            for (String pkg : packages) {
+                Class<?> clazz = load(pkg + "." + name);
+                if (clazz != null) {
+                    return clazz;
+                }
+            }
+            return null;
+        }
+        return load(name);
+    }
+
+    private Class<?> load(String name) {
+        try {
+            return completor.loadQualifiedClass(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param node An expression
+     * @return The expression as a dotted name, without the
+     * <code>Packages</code> prefix, or null if it is not made of names and
+     * member accesses starting from a top level package
+     */
+    private static String getDottedName(Node node) {
+        String name = getName(node);
+        if (name == null) {
+            return null;
+        }
+        if (name.startsWith("Packages.")) {
+            return name.substring("Packages.".length());
+        }
+        int dot = name.indexOf('.');
+        if (dot < 0 || TOP_LEVEL_PACKAGES.contains(name.substring(0, dot))) {
+            return name;
+        }
+        return null;
+    }
+
+    private static String getName(Node node) {
+        if (node.getType() == Token.NAME) {
+            return node.getString();
+        }
+        if (node.getType() == Token.GETPROP && node.getLastChild().getType() == Token.STRING) {
+            String target = getName(node.getFirstChild());
+            return target == null ? null : target + "." + node.getLastChild().getString();
+        }
+        return null;
+    }
+}
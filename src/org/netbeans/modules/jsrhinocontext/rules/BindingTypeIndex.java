@@ -0,0 +1,83 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+package org.netbeans.modules.jsrhinocontext.rules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.script.Bindings;
+
+/**
+ * The keys of a set of bindings by the types their values can be passed as,
+ * taking superclasses and implemented interfaces into account. Variables not
+ * bound are indexed by their inferred type. Rhino converts
+ * any number to a primitive numeric parameter, so numeric primitives are
+ * matched by the values that are numbers.
+ * @author adriano
+ */
+public final class BindingTypeIndex {
+
+    private final Map<Class<?>, List<String>> keys = new HashMap<Class<?>, List<String>>();
+
+    /**
+     * (Constructor) Build the index of a set of bindings
+     * @param bindings The bindings
+     * @param inferredTypes The types inferred for the variables not bound,
+     * by name
+     */
+    public BindingTypeIndex(Bindings bindings, Map<String, Class<?>> inferredTypes) {
+        for (Map.Entry<String, Object> binding : bindings.entrySet()) {
+            if (binding.getValue() != null) {
+                add(binding.getKey(), binding.getValue().getClass());
+            }
+        }
+        for (Map.Entry<String, Class<?>> inferred : inferredTypes.entrySet()) {
+            if (!bindings.containsKey(inferred.getKey())) {
+                add(inferred.getKey(), inferred.getValue());
+            }
+        }
+    }
+
+    private void add(String key, Class<?> clazz) {
+        for (Class<?> type : ClassMetadata.get(clazz).getSupertypes()) {
+            List<String> typeKeys = keys.get(type);
+            if (typeKeys == null) {
+                typeKeys = new ArrayList<String>();
+                keys.put(type, typeKeys);
+            }
+            typeKeys.add(key);
+        }
+    }
+
+    /**
+     * @param type The type of a parameter
+     * @return The keys of the bindings whose value can be passed as the
+     * parameter, in the order of the bindings
+     */
+    public List<String> getKeys(Class<?> type) {
+        if (type == Boolean.TYPE) {
+            type = Boolean.class;
+        } else if (type == Character.TYPE) {
+            type = Character.class;
+        } else if (type.isPrimitive()) {
+            type = Number.class;
+        }
+        List<String> typeKeys = keys.get(type);
+        if (typeKeys == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(typeKeys);
+    }
+}
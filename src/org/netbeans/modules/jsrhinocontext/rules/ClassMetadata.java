@@ -0,0 +1,301 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+package org.netbeans.modules.jsrhinocontext.rules;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * The public members of a class as seen by the completion rules, computed
+ * once per class and shared by all rules. Static and instance members are
+ * kept apart, each sorted by name so that a name prefix selects a contiguous
+ * range, and their generic signatures are computed up front.
+ * <p>
+ * Classes are weakly referenced and their metadata softly. The metadata
+ * refers to the members of its class, so an entry keeps its class, and the
+ * class loader, alive until memory runs low: the metadata of a class loader
+ * that is no longer used must be dropped with {@link #purge(ClassLoader)}.
+ * @author adriano
+ */
+public final class ClassMetadata {
+
+    private static final Map<Class<?>, Reference<ClassMetadata>> CACHE =
+            new WeakHashMap<Class<?>, Reference<ClassMetadata>>();
+
+    private static final Comparator<MemberInfo> BY_NAME = new Comparator<MemberInfo>() {
+
+        @Override
+        public int compare(MemberInfo m1, MemberInfo m2) {
+            return m1.getName().compareTo(m2.getName());
+        }
+    };
+
+    private final String canonicalName;
+
+    private final MemberInfo[] staticFields;
+
+    private final MemberInfo[] instanceFields;
+
+    private final MemberInfo[] staticMethods;
+
+    private final MemberInfo[] instanceMethods;
+
+    private final MemberInfo[] constructors;
+
+    private final List<Class<?>> supertypes;
+
+    private ClassMetadata(Class<?> clazz) {
+        canonicalName = clazz.getCanonicalName();
+        // Walk the hierarchy breadth first, so that nearer types come first
+        Set<Class<?>> hierarchy = new LinkedHashSet<Class<?>>();
+        LinkedList<Class<?>> queue = new LinkedList<Class<?>>();
+        queue.add(clazz);
+        while (!queue.isEmpty()) {
+            Class<?> type = queue.removeFirst();
+            if (hierarchy.add(type)) {
+                if (type.getSuperclass() != null) {
+                    queue.add(type.getSuperclass());
+                }
+                queue.addAll(Arrays.asList(type.getInterfaces()));
+            }
+        }
+        hierarchy.add(Object.class);
+        supertypes = Collections.unmodifiableList(new ArrayList<Class<?>>(hierarchy));
+        List<MemberInfo> statics = new ArrayList<MemberInfo>();
+        List<MemberInfo> instances = new ArrayList<MemberInfo>();
+        for (Field field : clazz.getFields()) {
+            MemberInfo info = new MemberInfo(field, field.getName(), null, field.toGenericString());
+            (info.isStatic() ? statics : instances).add(info);
+        }
+        staticFields = sort(statics);
+        instanceFields = sort(instances);
+        statics.clear();
+        instances.clear();
+        for (Method meth : clazz.getMethods()) {
+            MemberInfo info = new MemberInfo(meth, meth.getName(),
+                    meth.getParameterTypes(), meth.toGenericString());
+            (info.isStatic() ? statics : instances).add(info);
+        }
+        staticMethods = sort(statics);
+        instanceMethods = sort(instances);
+        List<MemberInfo> ctors = new ArrayList<MemberInfo>();
+        for (Constructor<?> ctor : clazz.getConstructors()) {
+            ctors.add(new MemberInfo(ctor, ctor.getName(),
+                    ctor.getParameterTypes(), ctor.toGenericString()));
+        }
+        constructors = ctors.toArray(new MemberInfo[ctors.size()]);
+    }
+
+    /**
+     * @param clazz A class
+     * @return The metadata of the class, computed on first request
+     */
+    public static ClassMetadata get(Class<?> clazz) {
+        synchronized (CACHE) {
+            Reference<ClassMetadata> ref = CACHE.get(clazz);
+            ClassMetadata metadata = ref == null ? null : ref.get();
+            if (metadata == null) {
+                metadata = new ClassMetadata(clazz);
+                CACHE.put(clazz, new SoftReference<ClassMetadata>(metadata));
+            }
+            return metadata;
+        }
+    }
+
+    /**
+     * Drop the metadata of the classes defined by a class loader, which would
+     * otherwise keep it alive as long as the metadata is softly reachable
+     * @param loader A class loader no longer in use
+     */
+    public static void purge(ClassLoader loader) {
+        synchronized (CACHE) {
+            for (Iterator<Class<?>> it = CACHE.keySet().iterator(); it.hasNext();) {
+                if (it.next().getClassLoader() == loader) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The canonical name of the class, or null if it has none
+     */
+    public String getCanonicalName() {
+        return canonicalName;
+    }
+
+    /**
+     * @param prefix The prefix of the names to look for
+     * @return The public static fields whose name starts with the prefix,
+     * sorted by name
+     */
+    public List<MemberInfo> getStaticFields(String prefix) {
+        return range(staticFields, prefix, false);
+    }
+
+    /**
+     * @param prefix The prefix of the names to look for
+     * @return The public instance fields whose name starts with the prefix,
+     * sorted by name
+     */
+    public List<MemberInfo> getInstanceFields(String prefix) {
+        return range(instanceFields, prefix, false);
+    }
+
+    /**
+     * @param prefix The prefix of the names to look for
+     * @return The public static methods whose name starts with the prefix,
+     * sorted by name
+     */
+    public List<MemberInfo> getStaticMethods(String prefix) {
+        return range(staticMethods, prefix, false);
+    }
+
+    /**
+     * @param prefix The prefix of the names to look for
+     * @return The public instance methods whose name starts with the prefix,
+     * sorted by name
+     */
+    public List<MemberInfo> getInstanceMethods(String prefix) {
+        return range(instanceMethods, prefix, false);
+    }
+
+    /**
+     * @param name The name of the methods to look for
+     * @param statics True to look for static methods, false for instance ones
+     * @return The overloads of the method with the given name
+     */
+    public List<MemberInfo> getMethods(String name, boolean statics) {
+        return range(statics ? staticMethods : instanceMethods, name, true);
+    }
+
+    /**
+     * @return The class, its superclasses and all the interfaces it
+     * implements, nearer types first. Its values can be passed where any of
+     * these types is expected
+     */
+    public List<Class<?>> getSupertypes() {
+        return supertypes;
+    }
+
+    /**
+     * @return The public constructors of the class
+     */
+    public List<MemberInfo> getConstructors() {
+        return Collections.unmodifiableList(Arrays.asList(constructors));
+    }
+
+    private static MemberInfo[] sort(List<MemberInfo> members) {
+        MemberInfo[] sorted = members.toArray(new MemberInfo[members.size()]);
+        Arrays.sort(sorted, BY_NAME);
+        return sorted;
+    }
+
+    /**
+     * @param members Members sorted by name
+     * @param key The prefix or the name to look for
+     * @param exact True to match the whole name, false to match a prefix
+     * @return The contiguous range of the matching members
+     */
+    private static List<MemberInfo> range(MemberInfo[] members, String key, boolean exact) {
+        int low = 0;
+        int high = members.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (members[mid].getName().compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int end = low;
+        while (end < members.length && (exact
+                ? members[end].getName().equals(key)
+                : members[end].getName().startsWith(key))) {
+            end++;
+        }
+        return Collections.unmodifiableList(Arrays.asList(members).subList(low, end));
+    }
+
+    /**
+     * A public field, method or constructor of a class
+     */
+    public static final class MemberInfo {
+
+        private final Member member;
+
+        private final String name;
+
+        private final Class<?>[] parameterTypes;
+
+        private final String genericString;
+
+        MemberInfo(Member member, String name, Class<?>[] parameterTypes, String genericString) {
+            this.member = member;
+            this.name = name;
+            this.parameterTypes = parameterTypes;
+            this.genericString = genericString;
+        }
+
+        /**
+         * @return The reflected member
+         */
+        public Member getMember() {
+            return member;
+        }
+
+        /**
+         * @return The name of the member
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The parameter types of a method or constructor, null for a field
+         */
+        public Class<?>[] getParameterTypes() {
+            return parameterTypes == null ? null : parameterTypes.clone();
+        }
+
+        /**
+         * @return The generic signature of the member
+         */
+        public String getGenericString() {
+            return genericString;
+        }
+
+        /**
+         * @return True if the member is static
+         */
+        public boolean isStatic() {
+            return Modifier.isStatic(member.getModifiers());
+        }
+    }
+}
@@ -12,16 +12,23 @@
  */
 package org.netbeans.modules.jsrhinocontext.rules;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.Map;
 import javax.script.Bindings;
+import org.netbeans.modules.jsrhinocontext.RhinoCandidateSink;
+import org.netbeans.modules.jsrhinocontext.RhinoCompletionCandidate;
+import org.netbeans.modules.jsrhinocontext.RhinoCompletionContext;
 import org.netbeans.modules.jsrhinocontext.RhinoCompletor;
 import org.openide.util.Exceptions;
 
 /**
  * Tries to match last part of the input buffer to an object and suggest the names
- * of its fields and methods
+ * of its fields and methods. The object may be reached through a chain of
+ * fields and method calls
  * @author adriano
  */
 public class FieldsAndMethodsRule extends RhinoCompletionRule {
@@ -31,80 +38,140 @@ public class FieldsAndMethodsRule extends RhinoCompletionRule {
     }
     
     @Override
-    public String match(String bufferOffset, String buffer, int cursor, List<String> candidates) {
-        Object lineObj = completor.getLineObject();
-        String[] parts = getMatchParts(buffer, cursor);
+    public Set<RhinoCompletionContext.Kind> getContextKinds() {
+        return EnumSet.of(RhinoCompletionContext.Kind.MEMBER_ACCESS,
+                RhinoCompletionContext.Kind.STATIC_ACCESS);
+    }
+    
+    @Override
+    public String match(RhinoCompletionContext context, RhinoCandidateSink candidates) {
+        if (context.getPartCount() > 2 || context.getRootClass() != null) {
+            return matchChain(context, candidates);
+        }
         Bindings bindings = completor.getEngineBindings();
-        String lastPart = getLastMatchPart(buffer, parts);
+        String lastPart = context.getLastPart();
 
-        if (lineObj == null) {
-            String objectName = "";
-            if (!bufferOffset.endsWith("(")) {
-                // This will autocomplete fields and methods of objects in scope
-                if (parts.length > 1
-                        && bindings.containsKey(parts[parts.length - 2])) {
-                    objectName = parts[parts.length - 2];
-                    lineObj = bindings.get(objectName);
-                    completor.setLineObject(lineObj);
-                }
-                if (lineObj != null) {
-                    Class<?> clazz = lineObj.getClass();
-                    if (clazz.getSimpleName().equals("NativeObject")) {
-                        // Get native java object fields and methods
-                        try {	
-                            Object[] ids = NativeResolver.getIds(lineObj);
-                            for(Object id : ids) {
-                                String key = (String) id; 
-                                try {
-                                    if ((Boolean) completor.getEngine().eval(
-                                            "typeof this." + objectName + "." + key + " === 'function'")) {
-                                        key += "( ";
-                                    }
-                                } catch (Exception e) {
-                                    Exceptions.printStackTrace(e);
-                                }
-                                String candidate = objectName + "." + key;
-                                if (key.indexOf(lastPart) == 0) {
-                                    if(candidate.endsWith("(")) {
-                                        addCandidate(candidates, candidate, "Method", "(Native object)");
-                                    } else {
-                                        addCandidate(candidates, candidate, "Field", "(Native object)");
-                                    }
-                                }
-                            }
-                        } catch (Exception e) {
-                            Exceptions.printStackTrace(e);
-                        }
-                    } else {
-                        // If an object is matched, use reflection to autocomplete
-                        // further
-                        Class objClass = lineObj.getClass();
-                        Field[] fields = objClass.getFields();
-                        for (Field field : fields) {
-                            String name = field.getName();
-                            if (name.startsWith(lastPart)) {
-                                addCandidate(candidates, objectName + "." + name, "Field", objClass.getCanonicalName());
-                            }
+        // This will autocomplete fields and methods of objects in scope
+        String objectName = context.getQualifier();
+        Object lineObj;
+        Class<?> clazz;
+        if (bindings.containsKey(objectName)) {
+            lineObj = bindings.get(objectName);
+            clazz = lineObj == null ? null : lineObj.getClass();
+        } else if (completor.getInferredTypes().containsKey(objectName)) {
+            // Not evaluated, but known to hold a Java object
+            lineObj = null;
+            clazz = completor.getInferredTypes().get(objectName);
+        } else {
+            return null;
+        }
+        if (clazz != null) {
+            if (clazz.getSimpleName().equals("NativeObject")) {
+                // Get native java object fields and methods
+                try {	
+                    Map<String, String> types = NativeResolver.getTypes(lineObj);
+                    for (Map.Entry<String, String> type : types.entrySet()) {
+                        String key = type.getKey();
+                        if (type.getValue().equals("function")) {
+                            key += "(";
                         }
-                        Method[] meths = objClass.getMethods();
-                        for (Method meth : meths) {
-                            String name = meth.getName();
-                            if (name.startsWith(lastPart)) {
-                                addCandidate(candidates, objectName + "." + name + "(", "Method", objClass.getCanonicalName());
+                        String candidate = objectName + "." + key;
+                        if (key.indexOf(lastPart) == 0) {
+                            if(candidate.endsWith("(")) {
+                                addCandidate(candidates, candidate, RhinoCompletionCandidate.Kind.METHOD, "(Native object)");
+                            } else {
+                                addCandidate(candidates, candidate, RhinoCompletionCandidate.Kind.FIELD, "(Native object)");
                             }
                         }
                     }
+                } catch (Exception e) {
+                    Exceptions.printStackTrace(e);
+                }
+            } else {
+                // If an object is matched, use reflection to autocomplete
+                // further. Rhino lets static members be reached
+                // through instances too
+                ClassMetadata metadata = ClassMetadata.get(clazz);
+                String description = metadata.getCanonicalName();
+                for (ClassMetadata.MemberInfo field : metadata.getInstanceFields(lastPart)) {
+                    addCandidate(candidates, objectName + "." + field.getName(), RhinoCompletionCandidate.Kind.FIELD, description);
                 }
-                if (!objectName.equals("")) {
-                    return objectName + "." + lastPart;
-                } else if (bufferOffset.length() > 0) {
-                    return objectName;
+                for (ClassMetadata.MemberInfo field : metadata.getStaticFields(lastPart)) {
+                    addCandidate(candidates, objectName + "." + field.getName(), RhinoCompletionCandidate.Kind.FIELD, description);
+                }
+                for (ClassMetadata.MemberInfo meth : metadata.getInstanceMethods(lastPart)) {
+                    addCandidate(candidates, objectName + "." + meth.getName() + "(", RhinoCompletionCandidate.Kind.METHOD, description);
+                }
+                for (ClassMetadata.MemberInfo meth : metadata.getStaticMethods(lastPart)) {
+                    addCandidate(candidates, objectName + "." + meth.getName() + "(", RhinoCompletionCandidate.Kind.METHOD, description);
                 }
             }
-        } else if (!lastPart.equals("")) {
-            return lastPart;
         }
-        return "";
+        return objectName + "." + lastPart;
+    }
+
+    /**
+     * Suggest the members of the type a chain of member accesses resolves to.
+     * The chain starts from an object in scope, from a new instance of a
+     * class, or from a class followed by its static members
+     * @param context The completion context, with more than two parts or a
+     * new instance as first part
+     * @param candidates the sink of the autocompletion candidates to fill
+     * @return The last part of the buffer, or null if the chain cannot be
+     * resolved
+     */
+    private String matchChain(RhinoCompletionContext context, RhinoCandidateSink candidates) {
+        String[] parts = context.getParts();
+        String lastPart = context.getLastPart();
+        Type root = null;
+        boolean statics = false;
+        int start = 1;
+        if (context.getRootClass() != null) {
+            try {
+                root = loadClass(context.getRootClass());
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        } else {
+            Object object = completor.getEngineBindings().get(parts[0]);
+            if (object != null) {
+                root = object.getClass();
+            } else {
+                root = completor.getInferredTypes().get(parts[0]);
+            }
+        }
+        String className = parts[0];
+        while (root == null && start < parts.length - 1 && !className.endsWith("()")) {
+            try {
+                root = loadClass(className);
+                statics = true;
+            } catch (ClassNotFoundException e) {
+                // Not a class yet, maybe a package
+                className += "." + parts[start++];
+            }
+        }
+        if (root == null) {
+            return null;
+        }
+        List<String> path = Arrays.asList(parts).subList(start, parts.length - 1);
+        Type type = completor.getMemberChainResolver().resolve(root, statics, path);
+        if (type == null) {
+            return null;
+        }
+        ClassMetadata metadata = ClassMetadata.get(MemberChainResolver.erase(type));
+        String description = MemberChainResolver.getName(type);
+        for (ClassMetadata.MemberInfo field : metadata.getInstanceFields(lastPart)) {
+            addCandidate(candidates, field.getName(), RhinoCompletionCandidate.Kind.FIELD, description);
+        }
+        for (ClassMetadata.MemberInfo field : metadata.getStaticFields(lastPart)) {
+            addCandidate(candidates, field.getName(), RhinoCompletionCandidate.Kind.FIELD, description);
+        }
+        for (ClassMetadata.MemberInfo meth : metadata.getInstanceMethods(lastPart)) {
+            addCandidate(candidates, meth.getName() + "(", RhinoCompletionCandidate.Kind.METHOD, description);
+        }
+        for (ClassMetadata.MemberInfo meth : metadata.getStaticMethods(lastPart)) {
+            addCandidate(candidates, meth.getName() + "(", RhinoCompletionCandidate.Kind.METHOD, description);
+        }
+        return lastPart;
     }
-    
 }
@@ -13,9 +13,13 @@
 
 package org.netbeans.modules.jsrhinocontext.rules;
 
-import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import org.netbeans.modules.jsrhinocontext.RhinoCandidateSink;
+import org.netbeans.modules.jsrhinocontext.RhinoCompletionCandidate;
+import org.netbeans.modules.jsrhinocontext.RhinoCompletionContext;
 import org.netbeans.modules.jsrhinocontext.RhinoCompletor;
 
 /**
@@ -29,63 +33,60 @@ public class InterfaceImplementationRule extends RhinoCompletionRule {
     }
 
     @Override
-    public String match(String bufferOffset, String buffer, int cursor, List<String> candidates) {
-        Object lineObj = completor.getLineObject();
-        if (lineObj == null) {
-            String lastPart = bufferOffset.trim();
-            if (lastPart.contains(" ")) {
-                lastPart = lastPart.substring(lastPart.lastIndexOf(" ") + 1);
-            }
+    public Set<RhinoCompletionContext.Kind> getContextKinds() {
+        return EnumSet.of(RhinoCompletionContext.Kind.CALL_ARGUMENTS);
+    }
 
-            if (lastPart.endsWith("(")) {
-                try {
-                    String objectName = lastPart.substring(0,
-                            lastPart.length() - 1);
-                    Class<?> object = loadClass(objectName);
-                    Method[] methods = object.getMethods();
-                    if (object.isInterface()) {
-                        // Interface is instantiated directly
-                        String candidate = "({";
-                        for (int j = 0; j < methods.length; j++) {
-                            Method meth = methods[j];
-                            candidate = makeCommaSepList(j, candidate);
-                            candidate += "\n\t" + meth.getName()
-                                    + ": function (";
-                            Class<?>[] params = meth.getParameterTypes();
-                            ArrayList<String> paramNames = new ArrayList<String>();
-                            for (int i = 0; i < params.length; i++) {
-                                candidate = makeCommaSepList(i, candidate);
-                                String paramName = params[i].getName();
-                                String simpleName = paramName.substring(paramName.lastIndexOf(".") + 1);
-                                if(params[i].isArray()) {
-                                    simpleName = paramName.substring(paramName.lastIndexOf(".") + 1);
-                                    simpleName = simpleName.substring(0, simpleName.length()-1);
-                                    simpleName += "Array";
-                                }
-                                paramName = simpleName.substring(0, 1).toLowerCase()
-                                        + simpleName.substring(1);
-                                // Disambiguate duplicate names
-                                if (paramNames.contains(paramName)) {
-                                    paramName += "I";
-                                }
-                                paramNames.add(paramName);
-                                candidate += paramName;
-                            }
-                            candidate += ") { }";
+    @Override
+    public String match(RhinoCompletionContext context, RhinoCandidateSink candidates) {
+        String objectName = context.getCallee();
+        // The implementation replaces the first argument and its bracket
+        if (objectName == null || context.getArgumentIndex() != 0
+                || !context.getBufferOffset().endsWith("(")) {
+            return null;
+        }
+        try {
+            Class<?> object = loadClass(objectName);
+            if (object.isInterface()) {
+                ClassMetadata metadata = ClassMetadata.get(object);
+                List<ClassMetadata.MemberInfo> methods = metadata.getInstanceMethods("");
+                // Interface is instantiated directly
+                String candidate = "({";
+                for (int j = 0; j < methods.size(); j++) {
+                    ClassMetadata.MemberInfo meth = methods.get(j);
+                    candidate = makeCommaSepList(j, candidate);
+                    candidate += "\n\t" + meth.getName()
+                            + ": function (";
+                    Class<?>[] params = meth.getParameterTypes();
+                    ArrayList<String> paramNames = new ArrayList<String>();
+                    for (int i = 0; i < params.length; i++) {
+                        candidate = makeCommaSepList(i, candidate);
+                        String paramName = params[i].getName();
+                        String simpleName = paramName.substring(paramName.lastIndexOf(".") + 1);
+                        if(params[i].isArray()) {
+                            simpleName = paramName.substring(paramName.lastIndexOf(".") + 1);
+                            simpleName = simpleName.substring(0, simpleName.length()-1);
+                            simpleName += "Array";
+                        }
+                        paramName = simpleName.substring(0, 1).toLowerCase()
+                                + simpleName.substring(1);
+                        // Disambiguate duplicate names
+                        if (paramNames.contains(paramName)) {
+                            paramName += "I";
                         }
-                        candidate += "\n})";
-                        addCandidate(candidates, candidate, "Interface implementation", object.getCanonicalName());
+                        paramNames.add(paramName);
+                        candidate += paramName;
                     }
-
-                    // So that other autocompletions are not triggered
-                    completor.setLineObject(new Object());
-                    return lastPart.substring(lastPart.indexOf("("));
-                } catch (Exception e) {
-                    // Last part is not an interface name
+                    candidate += ") { }";
                 }
+                candidate += "\n})";
+                addCandidate(candidates, candidate, RhinoCompletionCandidate.Kind.INTERFACE_IMPLEMENTATION, metadata.getCanonicalName());
             }
+            return "(" + context.getBuffer();
+        } catch (Exception e) {
+            // Last part is not an interface name
         }
-        return "";
+        return null;
     }
     
 }
@@ -0,0 +1,356 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+package org.netbeans.modules.jsrhinocontext.rules;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the type of a chain of member accesses, like
+ * <code>a.getB().getC()</code>, by following the types of the fields and the
+ * return types of the methods. Type arguments are carried along the chain, so
+ * that <code>list.get(0)</code> has the element type of a
+ * <code>List&lt;String&gt;</code>. Bean properties resolve to the type of
+ * their getter, as Rhino exposes them.
+ * <p>
+ * The type of every chain is remembered in a tree of entries, one per member
+ * and rooted at the type the chain starts from, so that a chain growing by
+ * one member at a time only resolves the new member.
+ * @author adriano
+ */
+public final class MemberChainResolver {
+
+    /**
+     * Marks a chain whose type could not be resolved
+     */
+    private static final Type UNRESOLVED = Void.TYPE;
+
+    /**
+     * The chains starting from an instance, by root type
+     */
+    private final Map<Type, Entry> instanceChains = new HashMap<Type, Entry>();
+
+    /**
+     * The chains starting from a class, by root class
+     */
+    private final Map<Type, Entry> staticChains = new HashMap<Type, Entry>();
+
+    /**
+     * Resolve the type of a chain of member accesses
+     * @param root The type the chain starts from
+     * @param statics True if the chain starts from the class itself, so that
+     * its first member is a static one
+     * @param path The members of the chain, method calls ending with
+     * <code>()</code>
+     * @return The type of the chain, or null if it cannot be resolved or is
+     * not a Java object
+     */
+    public synchronized Type resolve(Type root, boolean statics, List<String> path) {
+        Map<Type, Entry> memo = statics ? staticChains : instanceChains;
+        Entry entry = memo.get(root);
+        if (entry == null) {
+            entry = new Entry(root);
+            memo.put(root, entry);
+        }
+        boolean first = true;
+        for (String member : path) {
+            if (entry.type == UNRESOLVED) {
+                return null;
+            }
+            Entry next = entry.members.get(member);
+            if (next == null) {
+                next = new Entry(getMemberType(entry.type, member, statics && first));
+                entry.members.put(member, next);
+            }
+            entry = next;
+            first = false;
+        }
+        return entry.type == UNRESOLVED ? null : entry.type;
+    }
+
+    /**
+     * The type of a chain, together with the chains one member longer
+     */
+    private static final class Entry {
+
+        final Type type;
+
+        final Map<String, Entry> members = new HashMap<String, Entry>();
+
+        Entry(Type type) {
+            this.type = type;
+        }
+    }
+
+    /**
+     * @param owner The type whose member is accessed
+     * @param member The name of a field or bean property, or of a method
+     * followed by <code>()</code>
+     * @param statics True to look for static members only
+     * @return The type of the member as seen from the owner type, or
+     * {@link #UNRESOLVED}
+     */
+    private static Type getMemberType(Type owner, String member, boolean statics) {
+        ClassMetadata metadata = ClassMetadata.get(erase(owner));
+        Member found;
+        if (member.endsWith("()")) {
+            found = getMethod(metadata, member.substring(0, member.length() - 2), statics);
+        } else {
+            found = getField(metadata, member, statics);
+            if (found == null && !statics && member.length() > 0) {
+                // Rhino exposes bean properties through their getter
+                String property = Character.toUpperCase(member.charAt(0)) + member.substring(1);
+                found = getMethod(metadata, "get" + property, false);
+                if (found == null) {
+                    found = getMethod(metadata, "is" + property, false);
+                }
+            }
+        }
+        if (found == null) {
+            return UNRESOLVED;
+        }
+        Type type = found instanceof Field ? ((Field) found).getGenericType()
+                : ((Method) found).getGenericReturnType();
+        // Type variables are bound by the owner as a subtype of the class
+        // declaring the member
+        Type declaring = asSupertype(owner, found.getDeclaringClass());
+        Type resolved = substitute(type, declaring == null ? found.getDeclaringClass() : declaring);
+        if (erase(resolved).isPrimitive()) {
+            // Rhino turns primitives into script values
+            return UNRESOLVED;
+        }
+        return resolved;
+    }
+
+    private static Member getField(ClassMetadata metadata, String name, boolean statics) {
+        for (ClassMetadata.MemberInfo field : metadata.getStaticFields(name)) {
+            if (field.getName().equals(name)) {
+                return field.getMember();
+            }
+        }
+        if (!statics) {
+            for (ClassMetadata.MemberInfo field : metadata.getInstanceFields(name)) {
+                if (field.getName().equals(name)) {
+                    return field.getMember();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The arguments of the call are not known, so the overload taking the
+     * fewest parameters wins
+     */
+    private static Member getMethod(ClassMetadata metadata, String name, boolean statics) {
+        Member best = null;
+        for (ClassMetadata.MemberInfo meth : metadata.getMethods(name, true)) {
+            best = fewerParameters(best, meth);
+        }
+        if (!statics) {
+            for (ClassMetadata.MemberInfo meth : metadata.getMethods(name, false)) {
+                best = fewerParameters(best, meth);
+            }
+        }
+        return best;
+    }
+
+    private static Member fewerParameters(Member best, ClassMetadata.MemberInfo meth) {
+        if (best == null || meth.getParameterTypes().length
+                < ((Method) best).getParameterTypes().length) {
+            return meth.getMember();
+        }
+        return best;
+    }
+
+    /**
+     * @param type A type
+     * @param target A superclass or interface of the type
+     * @return The target with the type arguments it gets from the type, or
+     * null if it is not a supertype of the type
+     */
+    private static Type asSupertype(Type type, Class<?> target) {
+        Class<?> raw = erase(type);
+        if (raw == target) {
+            return type;
+        }
+        if (!target.isAssignableFrom(raw)) {
+            return null;
+        }
+        if (raw.getGenericSuperclass() != null) {
+            Type found = asSupertype(substitute(raw.getGenericSuperclass(), type), target);
+            if (found != null) {
+                return found;
+            }
+        }
+        for (Type generic : raw.getGenericInterfaces()) {
+            Type found = asSupertype(substitute(generic, type), target);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param type A type, possibly naming the type variables of a class
+     * @param context The class, with or without its type arguments
+     * @return The type, where the variables of the class are replaced by its
+     * arguments. Wildcards are replaced by their upper bound
+     */
+    private static Type substitute(Type type, Type context) {
+        if (type instanceof TypeVariable) {
+            if (context instanceof ParameterizedType) {
+                TypeVariable<?>[] variables = erase(context).getTypeParameters();
+                Type[] arguments = ((ParameterizedType) context).getActualTypeArguments();
+                for (int i = 0; i < variables.length; i++) {
+                    if (variables[i].equals(type)) {
+                        return upperBound(arguments[i]);
+                    }
+                }
+            }
+            // Raw use, or a variable of a generic method
+            return erase(type);
+        }
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterized = (ParameterizedType) type;
+            Type[] arguments = parameterized.getActualTypeArguments().clone();
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = substitute(arguments[i], context);
+            }
+            return new Parameterized((Class<?>) parameterized.getRawType(),
+                    parameterized.getOwnerType(), arguments);
+        }
+        if (type instanceof WildcardType) {
+            return substitute(upperBound(type), context);
+        }
+        if (type instanceof GenericArrayType) {
+            return erase(type);
+        }
+        return type;
+    }
+
+    private static Type upperBound(Type type) {
+        if (type instanceof WildcardType) {
+            return ((WildcardType) type).getUpperBounds()[0];
+        }
+        return type;
+    }
+
+    /**
+     * @param type A type
+     * @return The class of the values of the type
+     */
+    public static Class<?> erase(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        }
+        if (type instanceof ParameterizedType) {
+            return (Class<?>) ((ParameterizedType) type).getRawType();
+        }
+        if (type instanceof TypeVariable) {
+            return erase(((TypeVariable<?>) type).getBounds()[0]);
+        }
+        if (type instanceof WildcardType) {
+            return erase(upperBound(type));
+        }
+        if (type instanceof GenericArrayType) {
+            Class<?> component = erase(((GenericArrayType) type).getGenericComponentType());
+            return Array.newInstance(component, 0).getClass();
+        }
+        return Object.class;
+    }
+
+    /**
+     * @param type A type
+     * @return The name of the type, with its type arguments if known
+     */
+    public static String getName(Type type) {
+        if (type instanceof Class) {
+            return ClassMetadata.get((Class<?>) type).getCanonicalName();
+        }
+        return type.toString();
+    }
+
+    /**
+     * A class together with the type arguments found along a chain
+     */
+    private static final class Parameterized implements ParameterizedType {
+
+        private final Class<?> rawType;
+
+        private final Type ownerType;
+
+        private final Type[] arguments;
+
+        Parameterized(Class<?> rawType, Type ownerType, Type[] arguments) {
+            this.rawType = rawType;
+            this.ownerType = ownerType;
+            this.arguments = arguments;
+        }
+
+        @Override
+        public Type[] getActualTypeArguments() {
+            return arguments.clone();
+        }
+
+        @Override
+        public Type getRawType() {
+            return rawType;
+        }
+
+        @Override
+        public Type getOwnerType() {
+            return ownerType;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ParameterizedType)) {
+                return false;
+            }
+            ParameterizedType other = (ParameterizedType) obj;
+            return rawType.equals(other.getRawType())
+                    && Arrays.equals(arguments, other.getActualTypeArguments());
+        }
+
+        @Override
+        public int hashCode() {
+            return rawType.hashCode() ^ Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(ClassMetadata.get(rawType).getCanonicalName());
+            sb.append('<');
+            for (int i = 0; i < arguments.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(getName(arguments[i]));
+            }
+            return sb.append('>').toString();
+        }
+    }
+}
@@ -13,8 +13,13 @@
 
 package org.netbeans.modules.jsrhinocontext.rules;
 
-import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import org.netbeans.modules.jsrhinocontext.RhinoCandidateSink;
+import org.netbeans.modules.jsrhinocontext.RhinoCompletionCandidate;
+import org.netbeans.modules.jsrhinocontext.RhinoCompletionContext;
 import org.netbeans.modules.jsrhinocontext.RhinoCompletor;
 
 /**
@@ -30,48 +35,54 @@ public class MethodSignatureRule extends RhinoCompletionRule {
     }
     
     @Override
-    public String match(String bufferOffset, String buffer, int cursor, List<String> candidates) {
-        Object lineObj = completor.getLineObject();
-        if (lineObj == null) {
-            int startSel;
-            String lastPart = bufferOffset.trim();
-            if (lastPart.contains(" ")) {
-                lastPart = lastPart.substring(lastPart.lastIndexOf(" ") + 1);
-            }
-            if (lastPart.endsWith("(") && buffer.equals("")
-                    && (startSel = lastPart.lastIndexOf(".")) > 0) {
-                try {
-                    String objectName = lastPart.substring(0, startSel);
-                    String methodName = lastPart.substring(startSel + 1,
-                            lastPart.length() - 1);
-                    Object object = completor.getEngineBindings().get(objectName);
-                    if (object == null) {
-                        // Object is not in scope, so it must be a class that is
-                        // declaring some static method
-                        object = loadClass(objectName);
-                    }
-                    Method[] methods = object.getClass().getMethods();
-                    // Autocomplete the possible method signatures
-                    for (Method meth : methods) {
-                        if (meth.getName().equals(methodName)) {
-                            Class<?>[] params = meth.getParameterTypes();
-                            parameterComplete(
-                                    objectName + "." + meth.getName(), params,
-                                    candidates, "Method", meth.toGenericString());
-                        }
-                    }
-
-                    // So that other autocompletions are not triggered
-                    completor.setLineObject(new Object());
-
-                    return objectName + "." + methodName + "(";
-                } catch (Exception e) {
-                    // Last part is not a method name; it might be the class
-                    // name itself, if this is a default constructor.
+    public Set<RhinoCompletionContext.Kind> getContextKinds() {
+        return EnumSet.of(RhinoCompletionContext.Kind.CALL_ARGUMENTS);
+    }
+    
+    @Override
+    public String match(RhinoCompletionContext context, RhinoCandidateSink candidates) {
+        int startSel;
+        String callee = context.getCallee();
+        // Only right after the opening bracket, which the signatures replace
+        if (callee != null && context.getArgumentIndex() == 0
+                && context.getBuffer().equals("")
+                && context.getBufferOffset().endsWith(callee + "(")
+                && (startSel = callee.lastIndexOf(".")) > 0) {
+            try {
+                String objectName = callee.substring(0, startSel);
+                String methodName = callee.substring(startSel + 1);
+                Object object = completor.getEngineBindings().get(objectName);
+                Class<?> inferred = completor.getInferredTypes().get(objectName);
+                if (object == null && inferred == null) {
+                    // Object is not in scope, so it must be a class that is
+                    // declaring some static method
+                    object = loadClass(objectName);
+                }
+                // A class offers its static methods, an instance all of
+                // them, since Rhino reaches static members through instances
+                List<ClassMetadata.MemberInfo> methods;
+                if (object instanceof Class) {
+                    methods = ClassMetadata.get((Class<?>) object).getMethods(methodName, true);
+                } else {
+                    ClassMetadata metadata = ClassMetadata.get(
+                            object != null ? object.getClass() : inferred);
+                    methods = new ArrayList<ClassMetadata.MemberInfo>(
+                            metadata.getMethods(methodName, false));
+                    methods.addAll(metadata.getMethods(methodName, true));
+                }
+                // Autocomplete the possible method signatures
+                for (ClassMetadata.MemberInfo meth : methods) {
+                    parameterComplete(
+                            objectName + "." + meth.getName(), meth.getParameterTypes(),
+                            candidates, RhinoCompletionCandidate.Kind.METHOD, meth.getGenericString());
                 }
+                return objectName + "." + methodName + "(";
+            } catch (Exception e) {
+                // Last part is not a method name; it might be the class
+                // name itself, if this is a default constructor.
             }
         }
-        return "";
+        return null;
     }
     
 }
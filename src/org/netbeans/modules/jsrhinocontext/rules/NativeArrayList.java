@@ -0,0 +1,105 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+package org.netbeans.modules.jsrhinocontext.rules;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import org.mozilla.javascript.NativeArray;
+
+/**
+ * A read only view of a NativeArray that fetches the elements only when they
+ * are asked for, so that looking at the first elements of a huge array costs
+ * no more than looking at a small one. Nested arrays are seen as nested views
+ * down to a maximum depth, and the view ends at a maximum length.
+ * @author adriano
+ */
+public final class NativeArrayList extends AbstractList<Object> implements RandomAccess {
+
+    private final Object nativeArray;
+
+    /**
+     * The reflective element accessor, null when the array comes from the
+     * bundled Rhino and is accessed directly
+     */
+    private final Method getter;
+
+    private final long length;
+
+    private final int size;
+
+    private final int depth;
+
+    /**
+     * (Constructor) Build a view of a native array
+     * @param nativeArray The native array
+     * @param getter The reflective element accessor, or null for an array of the
+     * bundled Rhino
+     * @param length The length of the native array
+     * @param maxLength The maximum number of elements of the view
+     * @param depth The number of nesting levels still to be seen as views
+     */
+    NativeArrayList(Object nativeArray, Method getter, long length, int maxLength, int depth) {
+        this.nativeArray = nativeArray;
+        this.getter = getter;
+        this.length = length;
+        this.size = (int) Math.max(0, Math.min(length, maxLength));
+        this.depth = depth;
+    }
+
+    @Override
+    public Object get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        try {
+            Object element;
+            if (getter == null) {
+                NativeArray array = (NativeArray) nativeArray;
+                element = array.get(index, array);
+            } else {
+                element = getter.invoke(nativeArray, index, nativeArray);
+            }
+            if (depth > 0 && element != null
+                    && element.getClass().getSimpleName().equals("NativeArray")) {
+                element = NativeResolver.getList(element, depth - 1);
+            }
+            return element;
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The length of the native array, which may exceed the size of
+     * the view
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return True if the view does not reach the end of the native array
+     */
+    public boolean isTruncated() {
+        return size < length;
+    }
+}
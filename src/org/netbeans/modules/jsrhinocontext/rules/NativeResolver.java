@@ -11,12 +11,83 @@
  * Microsystems, Inc. All Rights Reserved.
  */
 package org.netbeans.modules.jsrhinocontext.rules;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Wrapper;
+import org.netbeans.modules.jsrhinocontext.RhinoCompletionOptions;
 
+/**
+ * Accesses Rhino objects without linking to the Rhino classes that created
+ * them, since the engine may come from a repackaged copy of Rhino. Objects of
+ * the bundled Rhino are accessed directly. For the others, classes, interfaces
+ * and methods are looked up once per runtime class and then reused.
+ */
 public class NativeResolver {
 	
+	/**
+	 * Marks a member that a runtime class does not have
+	 */
+	private static final Object MISSING = new Object();
+	
+	/**
+	 * The classes, interfaces and methods resolved so far, by runtime class.
+	 * Runtime classes are weakly referenced and their members softly. The
+	 * members belong to the runtime class or its supertypes, so an entry keeps
+	 * the class loader alive until memory runs low: the entries of a class
+	 * loader that is no longer used must be dropped with
+	 * {@link #purge(ClassLoader)}
+	 */
+	private static final Map<Class<?>, Reference<Map<String, Object>>> RESOLVED =
+			new WeakHashMap<Class<?>, Reference<Map<String, Object>>>();
+	
+	/**
+	 * @param clazz A runtime class
+	 * @return The members resolved so far for the class. Access must be
+	 * synchronized on the returned map
+	 */
+	private static Map<String, Object> getResolved(Class<?> clazz) {
+		synchronized (RESOLVED) {
+			Reference<Map<String, Object>> ref = RESOLVED.get(clazz);
+			Map<String, Object> resolved = ref == null ? null : ref.get();
+			if (resolved == null) {
+				resolved = new HashMap<String, Object>();
+				RESOLVED.put(clazz, new SoftReference<Map<String, Object>>(resolved));
+			}
+			return resolved;
+		}
+	}
+	
+	/**
+	 * Drop the members resolved for the runtime classes defined by a class
+	 * loader or by the loaders it created, which would otherwise keep it alive
+	 * as long as the members are softly reachable
+	 * @param loader A class loader no longer in use
+	 */
+	public static void purge(ClassLoader loader) {
+		synchronized (RESOLVED) {
+			for (Iterator<Class<?>> it = RESOLVED.keySet().iterator(); it.hasNext();) {
+				for (ClassLoader l = it.next().getClassLoader(); l != null; l = l.getParent()) {
+					if (l == loader) {
+						it.remove();
+						break;
+					}
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Traverse an object class hierarchy to resolve one class given its name
 	 * 
@@ -27,6 +98,30 @@ public class NativeResolver {
 	 */
 	private static Class<?> getObjectClass(Object obj, String className) throws ClassNotFoundException {
 		Class<?> clazz = obj.getClass();
+		Map<String, Object> resolved = getResolved(clazz);
+		String key = "class:" + className;
+		Object member;
+		synchronized (resolved) {
+			member = resolved.get(key);
+		}
+		if (member == null) {
+			member = findObjectClass(clazz, className);
+			synchronized (resolved) {
+				resolved.put(key, member);
+			}
+		}
+		if (member == MISSING) {
+			throw new ClassNotFoundException(className);
+		}
+		return (Class<?>) member;
+	}
+	
+	/**
+	 * @param clazz The runtime class of an object
+	 * @param className The simple name of the class to look for
+	 * @return The class with the given name in the hierarchy, or MISSING
+	 */
+	private static Object findObjectClass(Class<?> clazz, String className) {
 		Class<?> inheritor = clazz;
 		// Traverse class hierarchy to resolve ScriptableObject
 		while(!inheritor.getSimpleName().equals(className) &&
@@ -34,7 +129,7 @@ public class NativeResolver {
 			inheritor = inheritor.getSuperclass();
 		}
 		if(!inheritor.getSimpleName().equals(className)) {
-			throw new ClassNotFoundException();
+			return MISSING;
 		}
 		return inheritor;
 	}
@@ -59,11 +154,45 @@ public class NativeResolver {
 	 */
 	public static Object invoke(Object object, String className, String methodName, Class<?>[] paramTypes, Object[] paramsValues ) throws ClassNotFoundException, SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
 		// Invocation
-		Method m = getObjectClass(object, className).getMethod(methodName, paramTypes);
+		Method m = getMethod(object, className, methodName, paramTypes);
 		Object returnValue = m.invoke(object, paramsValues);
 		return returnValue;
 	}
 	
+	/**
+	 * Resolve a method of an object, once per runtime class
+	 * 
+	 * @param object The object in question
+	 * @param className The name of the class that defines the method
+	 * @param methodName The name of the method
+	 * @param paramTypes An array specifying the types of the method parameters
+	 * @return The method
+	 * @throws ClassNotFoundException If the object is not instance of <code>className</code>
+	 * @throws NoSuchMethodException If the method does not exist
+	 */
+	private static Method getMethod(Object object, String className, String methodName, Class<?>[] paramTypes) throws ClassNotFoundException, NoSuchMethodException {
+		Map<String, Object> resolved = getResolved(object.getClass());
+		String key = "method:" + className + "." + methodName + Arrays.asList(paramTypes);
+		Object member;
+		synchronized (resolved) {
+			member = resolved.get(key);
+		}
+		if (member == null) {
+			try {
+				member = getObjectClass(object, className).getMethod(methodName, paramTypes);
+			} catch (NoSuchMethodException e) {
+				member = MISSING;
+			}
+			synchronized (resolved) {
+				resolved.put(key, member);
+			}
+		}
+		if (member == MISSING) {
+			throw new NoSuchMethodException(className + "." + methodName);
+		}
+		return (Method) member;
+	}
+	
 	/**
 	 * Invokes the getIds() method on a scriptable object
 	 * 
@@ -79,6 +208,9 @@ public class NativeResolver {
 	 * @see java.lang.reflect.Method#invoke(Object, Object...)
 	 */
 	public static Object[] getIds(Object scriptableObject) throws SecurityException, IllegalArgumentException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+		if (scriptableObject instanceof ScriptableObject) {
+			return ((ScriptableObject) scriptableObject).getIds();
+		}
 		return (Object[]) NativeResolver.invoke(
 				scriptableObject, 
 				"ScriptableObject",
@@ -88,12 +220,40 @@ public class NativeResolver {
 			);
 	}
 	
+	/**
+	 * Invokes the getAllIds() method on a scriptable object
+	 * 
+	 * @param scriptableObject The object in question
+	 * @return The ids of all the properties of the object, the ones not
+	 * enumerated by a <code>for in</code> loop included
+	 * @throws ClassNotFoundException If the object is not instance of ScriptableObject
+	 * @throws NoSuchMethodException If the method does not exist
+	 * @throws SecurityException If reflection fails invocation
+	 * @throws IllegalArgumentException If reflection fails invocation
+	 * @throws IllegalAccessException If reflection fails invocation
+	 * @throws InvocationTargetException If reflection fails invocation
+	 * 
+	 * @see java.lang.reflect.Method#invoke(Object, Object...)
+	 */
+	public static Object[] getAllIds(Object scriptableObject) throws SecurityException, IllegalArgumentException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+		if (scriptableObject instanceof ScriptableObject) {
+			return ((ScriptableObject) scriptableObject).getAllIds();
+		}
+		return (Object[]) NativeResolver.invoke(
+				scriptableObject, 
+				"ScriptableObject",
+				"getAllIds", 
+				new Class[] {}, 
+				new Object[] {}
+			);
+	}
+	
 	/**
 	 * Invokes the get() method on a scriptable object
 	 * 
 	 * @param scriptableObject The object in question
 	 * @param property The property to get
-	 * @return The property value
+	 * @return The property value, as a lazy list if it is an array
 	 * @throws ClassNotFoundException If the object is not instance of ScriptableObject
 	 * @throws NoSuchMethodException If the method does not exist
 	 * @throws SecurityException If reflection fails invocation
@@ -104,25 +264,33 @@ public class NativeResolver {
 	 * @see java.lang.reflect.Method#invoke(Object, Object...)
 	 */
 	public static Object get(Object scriptableObject, String property) throws SecurityException, IllegalArgumentException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException {
-		Object result = (Object) NativeResolver.invoke(
-			scriptableObject,
-			"ScriptableObject",
-			"get", 
-			new Class[] { String.class, getInterface(scriptableObject, "ScriptableObject", "Scriptable") }, 
-			new Object[] { property, scriptableObject }
-		);
+		Object result;
+		if (scriptableObject instanceof ScriptableObject) {
+			ScriptableObject so = (ScriptableObject) scriptableObject;
+			result = so.get(property, so);
+		} else {
+			result = (Object) NativeResolver.invoke(
+				scriptableObject,
+				"ScriptableObject",
+				"get", 
+				new Class[] { String.class, getInterface(scriptableObject, "ScriptableObject", "Scriptable") }, 
+				new Object[] { property, scriptableObject }
+			);
+		}
 
 		if (result.getClass().getSimpleName().equals("NativeArray")) {
-			result = getArray(result);
+			result = getList(result);
 		}
 		return result;
 	}
 	
 	/**
-	 * Return a NativeArray as an array of Java objects
+	 * Return a NativeArray as an array of Java objects. The whole array is
+	 * copied, nested arrays included, regardless of the limits of
+	 * {@link #getList(Object)}
 	 * 
 	 * @param nativeArray The native array in question
-	 * @return An array of Java objects
+	 * @return An array of Java objects, where nested arrays are arrays too
 	 * @throws ClassNotFoundException If the object is not instance of ScriptableObject
 	 * @throws NoSuchMethodException If the method does not exist
 	 * @throws SecurityException If reflection fails invocation
@@ -133,6 +301,19 @@ public class NativeResolver {
 	 * @see java.lang.reflect.Method#invoke(Object, Object...)
 	 */
 	public static Object[] getArray(Object nativeArray) throws SecurityException, IllegalArgumentException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+		if (nativeArray instanceof NativeArray) {
+			NativeArray array = (NativeArray) nativeArray;
+			long len = array.getLength();
+			ArrayList<Object> objects = new ArrayList<Object>();
+			for (int i = 0; i < len; i++) {
+				Object o = array.get(i, array);
+				if (o instanceof NativeArray) {
+					o = getArray(o);
+				}
+				objects.add(o);
+			}
+			return objects.toArray(new Object[objects.size()]);
+		}
 		long len = (Long) invoke(
 			nativeArray, 
 			"NativeArray",
@@ -140,15 +321,16 @@ public class NativeResolver {
 			new Class[] {}, 
 			new Object[] {}
 		);
+		// Resolve the accessor once for all the elements
+		Method get = getMethod(
+				nativeArray,
+				"NativeArray",
+				"get", 
+				new Class[] { Integer.TYPE, getInterface(nativeArray, "ScriptableObject", "Scriptable") }
+			);
 		ArrayList<Object> objects = new ArrayList<Object>();
 		for (int i = 0; i < len; i++) {
-			Object o = (Object) NativeResolver.invoke(
-					nativeArray,
-					"NativeArray",
-					"get", 
-					new Class[] { Integer.TYPE, getInterface(nativeArray, "ScriptableObject", "Scriptable") }, 
-					new Object[] { i, nativeArray }
-				);
+			Object o = get.invoke(nativeArray, i, nativeArray);
 			if (o.getClass().getSimpleName().equals("NativeArray")) {
 				o = getArray(o);
 			}
@@ -156,6 +338,49 @@ public class NativeResolver {
 		}
 		return objects.toArray(new Object[objects.size()]);
 	}
+	
+	/**
+	 * Return a lazy view of a NativeArray, within the length and depth limits
+	 * of the options. Elements are fetched only when asked for
+	 * 
+	 * @param nativeArray The native array in question
+	 * @return A list of Java objects, where nested arrays are lists too
+	 * @throws ClassNotFoundException If the object is not instance of NativeArray
+	 * @throws NoSuchMethodException If the method does not exist
+	 * @throws SecurityException If reflection fails invocation
+	 * @throws IllegalArgumentException If reflection fails invocation
+	 * @throws IllegalAccessException If reflection fails invocation
+	 * @throws InvocationTargetException If reflection fails invocation
+	 * 
+	 * @see RhinoCompletionOptions#getArrayLengthLimit()
+	 * @see RhinoCompletionOptions#getArrayDepthLimit()
+	 */
+	public static NativeArrayList getList(Object nativeArray) throws SecurityException, IllegalArgumentException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+		return getList(nativeArray, RhinoCompletionOptions.getArrayDepthLimit());
+	}
+	
+	static NativeArrayList getList(Object nativeArray, int depth) throws SecurityException, IllegalArgumentException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+		int maxLength = RhinoCompletionOptions.getArrayLengthLimit();
+		if (nativeArray instanceof NativeArray) {
+			return new NativeArrayList(nativeArray, null,
+					((NativeArray) nativeArray).getLength(), maxLength, depth);
+		}
+		long len = (Long) invoke(
+			nativeArray, 
+			"NativeArray",
+			"getLength", 
+			new Class[] {}, 
+			new Object[] {}
+		);
+		// Resolve the accessor once for all the elements
+		Method get = getMethod(
+				nativeArray,
+				"NativeArray",
+				"get", 
+				new Class[] { Integer.TYPE, getInterface(nativeArray, "ScriptableObject", "Scriptable") }
+			);
+		return new NativeArrayList(nativeArray, get, len, maxLength, depth);
+	}
 
 	/**
 	 * Invokes the get() method on a scriptable object, providing a default value
@@ -170,19 +395,203 @@ public class NativeResolver {
 	public static Object get(Object scriptableObject, String property, Object defaultValue) {
 		try {
 			Class<?> defaultClass = defaultValue.getClass();
-			Object result = NativeResolver.invoke(
-					scriptableObject, 
-					"ScriptableObject",
-					"get", 
-					new Class[] { String.class, getInterface(scriptableObject, "ScriptableObject", "Scriptable") }, 
-					new Object[] { property, scriptableObject }
-				);
+			Object result;
+			if (scriptableObject instanceof ScriptableObject) {
+				ScriptableObject so = (ScriptableObject) scriptableObject;
+				result = so.get(property, so);
+			} else {
+				result = NativeResolver.invoke(
+						scriptableObject, 
+						"ScriptableObject",
+						"get", 
+						new Class[] { String.class, getInterface(scriptableObject, "ScriptableObject", "Scriptable") }, 
+						new Object[] { property, scriptableObject }
+					);
+			}
 			return defaultClass.cast(result);
 		} catch (Exception e) {
 			return defaultValue;
 		}
 	}
 
+	/**
+	 * Classify a value the way the JavaScript <code>typeof</code> operator does,
+	 * without evaluating any script
+	 * 
+	 * @param value A value taken from the bindings or from a scriptable object
+	 * @return One of "undefined", "boolean", "number", "string", "function"
+	 * or "object"
+	 */
+	public static String typeOf(Object value) {
+		if (value == null) {
+			return "object";
+		}
+		if (value instanceof Boolean) {
+			return "boolean";
+		}
+		if (value instanceof Number) {
+			return "number";
+		}
+		if (value instanceof CharSequence) {
+			return "string";
+		}
+		if (value instanceof Function) {
+			return "function";
+		}
+		Class<?> clazz = value.getClass();
+		if (clazz.getSimpleName().equals("Undefined")) {
+			return "undefined";
+		}
+		Map<String, Object> resolved = getResolved(clazz);
+		Object function;
+		synchronized (resolved) {
+			function = resolved.get("function");
+		}
+		if (function == null) {
+			function = Boolean.valueOf(implementsFunction(clazz));
+			synchronized (resolved) {
+				resolved.put("function", function);
+			}
+		}
+		return (Boolean) function ? "function" : "object";
+	}
+	
+	/**
+	 * Find the type of the elements of a NativeArray, looking only at the
+	 * elements within the limits of {@link #getList(Object)}. Java objects
+	 * are seen through their script wrappers
+	 * 
+	 * @param nativeArray The native array in question
+	 * @return The most specific class of all the elements that are not null,
+	 * or null if the array is empty or holds script objects or arrays
+	 * @throws ClassNotFoundException If the object is not instance of NativeArray
+	 * @throws NoSuchMethodException If the method does not exist
+	 * @throws SecurityException If reflection fails invocation
+	 * @throws IllegalArgumentException If reflection fails invocation
+	 * @throws IllegalAccessException If reflection fails invocation
+	 * @throws InvocationTargetException If reflection fails invocation
+	 */
+	public static Class<?> getElementType(Object nativeArray) throws SecurityException, IllegalArgumentException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+		// Nested arrays are not looked into
+		NativeArrayList elements = getList(nativeArray, 0);
+		Class<?> common = null;
+		for (Object element : elements) {
+			String type = typeOf(element);
+			if (element == null || type.equals("undefined")) {
+				continue;
+			}
+			Class<?> clazz;
+			if (element instanceof Wrapper) {
+				clazz = ((Wrapper) element).unwrap().getClass();
+			} else if (implementsInterface(element.getClass(), "Wrapper")) {
+				clazz = element.getClass().getMethod("unwrap").invoke(element).getClass();
+			} else if (type.equals("string")) {
+				// Whatever the script engine builds strings with
+				clazz = String.class;
+			} else if (type.equals("object") || type.equals("function")) {
+				// A script object, function or array
+				return null;
+			} else {
+				clazz = element.getClass();
+			}
+			while (common != null && !common.isAssignableFrom(clazz)) {
+				common = common.getSuperclass();
+			}
+			if (common == null) {
+				common = clazz;
+			}
+			if (common == Object.class) {
+				break;
+			}
+		}
+		return common;
+	}
+	
+	/**
+	 * Classify every binding in a single pass
+	 * 
+	 * @param bindings The bindings in question
+	 * @return The <code>typeof</code> of each binding, by key
+	 * @see #typeOf(Object)
+	 */
+	public static Map<String, String> getTypes(Map<String, ?> bindings) {
+		Map<String, String> types = new LinkedHashMap<String, String>();
+		// Copy the entries first to avoid concurrent modification
+		for (Map.Entry<String, ?> entry : new ArrayList<Map.Entry<String, ?>>(bindings.entrySet())) {
+			types.put(entry.getKey(), typeOf(entry.getValue()));
+		}
+		return types;
+	}
+	
+	/**
+	 * Classify every property of a scriptable object in a single pass
+	 * 
+	 * @param scriptableObject The object in question
+	 * @return The <code>typeof</code> of each property, by id
+	 * @throws ClassNotFoundException If the object is not instance of ScriptableObject
+	 * @throws NoSuchMethodException If the method does not exist
+	 * @throws SecurityException If reflection fails invocation
+	 * @throws IllegalArgumentException If reflection fails invocation
+	 * @throws IllegalAccessException If reflection fails invocation
+	 * @throws InvocationTargetException If reflection fails invocation
+	 * @see #typeOf(Object)
+	 */
+	public static Map<String, String> getTypes(Object scriptableObject) throws SecurityException, IllegalArgumentException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+		Object[] ids = getIds(scriptableObject);
+		Map<String, String> types = new LinkedHashMap<String, String>();
+		if (scriptableObject instanceof ScriptableObject) {
+			ScriptableObject so = (ScriptableObject) scriptableObject;
+			for (Object id : ids) {
+				Object value = id instanceof Integer
+						? so.get((Integer) id, so)
+						: so.get(String.valueOf(id), so);
+				types.put(String.valueOf(id), typeOf(value));
+			}
+			return types;
+		}
+		// Resolve the accessors once for all the properties
+		Class<?> scriptable = getInterface(scriptableObject, "ScriptableObject", "Scriptable");
+		Method getNamed = getMethod(scriptableObject, "ScriptableObject", "get",
+				new Class[] { String.class, scriptable });
+		Method getIndexed = getMethod(scriptableObject, "ScriptableObject", "get",
+				new Class[] { Integer.TYPE, scriptable });
+		for (Object id : ids) {
+			Object value = id instanceof Integer
+					? getIndexed.invoke(scriptableObject, id, scriptableObject)
+					: getNamed.invoke(scriptableObject, String.valueOf(id), scriptableObject);
+			types.put(String.valueOf(id), typeOf(value));
+		}
+		return types;
+	}
+	
+	/**
+	 * @param clazz A runtime class
+	 * @return True if the class implements an interface named Function
+	 * from a Rhino package
+	 */
+	private static boolean implementsFunction(Class<?> clazz) {
+		return implementsInterface(clazz, "Function");
+	}
+	
+	/**
+	 * @param clazz A runtime class
+	 * @param interfaceName The simple name of an interface
+	 * @return True if the class implements an interface of that name from a
+	 * Rhino package
+	 */
+	private static boolean implementsInterface(Class<?> clazz, String interfaceName) {
+		for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+			for (Class<?> intf : c.getInterfaces()) {
+				if ((intf.getSimpleName().equals(interfaceName)
+						&& intf.getName().contains("javascript"))
+						|| implementsInterface(intf, interfaceName)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Traverse an object class hierarchy to resolve an interface
 	 * 
@@ -195,13 +604,29 @@ public class NativeResolver {
 	 * @throws ClassNotFoundException If the object does not implement the given interface
 	 */
 	private static Class<?> getInterface(Object obj, String implementorClassName, String interfaceName) throws ClassNotFoundException {
-		Class<?> clazz = getObjectClass(obj, implementorClassName);
-		Class<?>[] interfaces = clazz.getInterfaces();
-		for (Class<?> intf : interfaces) {
-			if(intf.getSimpleName().equals(interfaceName)) {
-				return intf;
-			}			
-		}
-		throw new ClassNotFoundException();
+		Map<String, Object> resolved = getResolved(obj.getClass());
+		String key = "interface:" + implementorClassName + "/" + interfaceName;
+		Object member;
+		synchronized (resolved) {
+			member = resolved.get(key);
+		}
+		if (member == null) {
+			member = MISSING;
+			Class<?> clazz = getObjectClass(obj, implementorClassName);
+			Class<?>[] interfaces = clazz.getInterfaces();
+			for (Class<?> intf : interfaces) {
+				if(intf.getSimpleName().equals(interfaceName)) {
+					member = intf;
+					break;
+				}			
+			}
+			synchronized (resolved) {
+				resolved.put(key, member);
+			}
+		}
+		if (member == MISSING) {
+			throw new ClassNotFoundException(interfaceName);
+		}
+		return (Class<?>) member;
 	}
 }
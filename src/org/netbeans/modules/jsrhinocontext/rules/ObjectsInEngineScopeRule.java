@@ -12,15 +12,19 @@
  */
 package org.netbeans.modules.jsrhinocontext.rules;
 
-import java.lang.reflect.Constructor;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
 import javax.script.Bindings;
+import org.netbeans.modules.jsrhinocontext.RhinoCandidateList;
+import org.netbeans.modules.jsrhinocontext.RhinoCandidateSink;
+import org.netbeans.modules.jsrhinocontext.RhinoCompletionCandidate;
+import org.netbeans.modules.jsrhinocontext.RhinoCompletionContext;
 import org.netbeans.modules.jsrhinocontext.RhinoCompletor;
 import org.openide.util.Exceptions;
+import org.openide.util.RequestProcessor;
 
 /**
  * Tries to match last part of the input buffer to any name of object or function
@@ -29,125 +33,195 @@ import org.openide.util.Exceptions;
  */
 public class ObjectsInEngineScopeRule extends RhinoCompletionRule {
     
+    /**
+     * Matches the engine scope while the calling thread matches class names
+     */
+    private static final RequestProcessor GENERATORS =
+            new RequestProcessor("Rhino content assist generators",
+            Runtime.getRuntime().availableProcessors());
+    
     public ObjectsInEngineScopeRule(RhinoCompletor completor) {
         super(completor);
     }
     
-    private boolean isClassName(String candidate, String buffer) {
-        if(candidate.equals(buffer)) {
-            return true;
-        }
-        if(candidate.endsWith("." + buffer) && !buffer.equals("")) {
-            return true;
-        }
-        
-        if(!candidate.replace(buffer, "").contains(".")) {
-            try {
-                loadClass(candidate);
-                return true;
-            } catch (ClassNotFoundException ex) {
-                return false;
-            }
-        }
-        return false;
-    }
-    
      /**
      * Tries to match last part of the input buffer to any name of class in the 
      * classpath
      * @param buffer The input buffer
      * @param cursor The current cursor position
-     * @param candidates the current list of autocompletion candidates
+     * @param candidates the sink of the autocompletion candidates
      */
     private void matchClassName(String buffer, int cursor,
-            List<String> candidates) {
-        List<String> classCandidates = new ArrayList<String>();
+            RhinoCandidateSink candidates) {
         buffer = (buffer == null) ? "" : buffer;
-        for (Iterator i = completor.getJavaNames().iterator(); i.hasNext();) {
-            String candidate = (String) i.next();
-            boolean isClassName = isClassName(candidate, buffer);
-            if (candidate.startsWith(buffer) || isClassName) {
-                if(!isClassName) {
-                    int index = candidate.indexOf(".", cursor);
-                    if (index != -1) {
-                        candidate = candidate.substring(0, index + 1);
-                    }
-                }
-                // Filter dupes
-                if (!classCandidates.contains(candidate)) {
-                    classCandidates.add(candidate);
-                }
+        String end = buffer + '\uffff';
+        SortedSet<String> names = completor.getJavaNames();
+        // Walk the names starting with the buffer in order, collapsing each
+        // package below the buffer to a single candidate and jumping past it.
+        // Values tell classes from packages
+        Map<String, Boolean> classCandidates = new LinkedHashMap<String, Boolean>();
+        String from = buffer;
+        while (true) {
+            SortedSet<String> range = names.subSet(from, end);
+            if (range.isEmpty()) {
+                break;
+            }
+            String candidate = range.first();
+            int index = candidate.indexOf(".", buffer.length());
+            if (index == -1) {
+                classCandidates.put(candidate, Boolean.TRUE);
+                from = candidate + '\0';
+            } else {
+                candidate = candidate.substring(0, index + 1);
+                classCandidates.put(candidate, Boolean.FALSE);
+                from = candidate + '\uffff';
+            }
+        }
+        // Simple names and tails of qualified names
+        if (!buffer.equals("")) {
+            for (String candidate : completor.getJavaTypeIndex().getQualifiedNames(buffer)) {
+                classCandidates.put(candidate, Boolean.TRUE);
             }
         }
 
         // Match java entities to class names
-        for (String candidate : classCandidates) {
-            // Proceed if a full qualifed class name was matched
-            candidate = candidate.trim();
-            if (isClassName(candidate, buffer)) {
+        for (Map.Entry<String, Boolean> entry : classCandidates.entrySet()) {
+            String candidate = entry.getKey();
+            if (entry.getValue()) {
+                if (!isWanted(candidates, candidate, RhinoCompletionCandidate.Kind.CLASS)) {
+                    // Do not load the classes that would be left out
+                    continue;
+                }
+                Class<?> clazz;
                 try {
-                    Class<?> clazz = loadClass(candidate);
+                    clazz = loadClass(candidate);
+                } catch (ClassNotFoundException e) {
+                    // Declared in the index but not loadable, like a nested
+                    // class of a source file not compiled yet
+                    continue;
+                }
+                try {
+                    ClassMetadata metadata = ClassMetadata.get(clazz);
                     if (clazz.isInterface()) {
-                        addCandidate(candidates, candidate + "(", "Interface", clazz.getCanonicalName());
+                        addCandidate(candidates, candidate + "(", RhinoCompletionCandidate.Kind.INTERFACE, metadata.getCanonicalName());
                     } else {
-                        addCandidate(candidates, clazz.getName(), "Class", clazz.getCanonicalName());
+                        addCandidate(candidates, clazz.getName(), RhinoCompletionCandidate.Kind.CLASS, metadata.getCanonicalName());
 
                         // Treat also constructors as candidates
-                        Constructor<?>[] ctors = clazz.getConstructors();
-                        for (Constructor<?> ctor : ctors) {
-                            Class<?>[] params = ctor.getParameterTypes();
-                            parameterComplete(ctor.getName(), params,
-                                    candidates, "Constructor", ctor.toGenericString());
+                        for (ClassMetadata.MemberInfo ctor : metadata.getConstructors()) {
+                            if (!isWanted(candidates, ctor.getName() + "(",
+                                    RhinoCompletionCandidate.Kind.CONSTRUCTOR)) {
+                                break;
+                            }
+                            parameterComplete(ctor.getName(), ctor.getParameterTypes(),
+                                    candidates, RhinoCompletionCandidate.Kind.CONSTRUCTOR, ctor.getGenericString());
                         }
                     }
                 } catch (Throwable t) {
                     Exceptions.printStackTrace(t);
                 }
             } else {
-                addCandidate(candidates, candidate, "Package", candidate.substring(0, candidate.length()-1));
+                addCandidate(candidates, candidate, RhinoCompletionCandidate.Kind.PACKAGE, candidate.substring(0, candidate.length()-1));
             }
         }
 
     }
     
     @Override
-    public String match(String bufferOffset,
-            String buffer, int cursor, List<String> candidates) {
-        Object lineObj = completor.getLineObject();
-        if (lineObj == null) {
-            String[] parts = getMatchParts(buffer, cursor);
-            Bindings bindings = completor.getEngineBindings();
-            String lastPart = getLastMatchPart(buffer, parts);
-
-            // This will match class names
-            matchClassName(buffer, cursor, candidates);
+    public Set<RhinoCompletionContext.Kind> getContextKinds() {
+        // The last resort of every context
+        return EnumSet.allOf(RhinoCompletionContext.Kind.class);
+    }
+    
+    @Override
+    public String match(RhinoCompletionContext context,
+            final RhinoCandidateSink candidates) {
+        String buffer = context.getBuffer();
+        final String lastPart = context.getLastPart();
+        final RhinoCandidateList scopeCandidates = new RhinoCandidateList();
+        RequestProcessor.Task scopeTask = null;
+        if (context.getPartCount() <= 1
+                && context.getKind() != RhinoCompletionContext.Kind.NEW) {
+            // Let bindings appear among candidates at engine scope
+            // Only if there is no instancing currently going on.
+            // They are matched while class names are
+            final Bindings bindings = completor.getEngineBindings();
+            final Map<String, Class<?>> inferredTypes = completor.getInferredTypes();
+            scopeTask = GENERATORS.post(new Runnable() {
 
-            if (parts.length <= 1 && !bufferOffset.trim().endsWith("new")   ) {
-                // Let bindings appear among candidates at engine scope
-                // Only if there is no instancing currently going on
-                Set<String> keySet = new HashSet<String>();
-                // Store key set locally to avoid concurrent modification
-                for (String key : bindings.keySet()) {
-                    keySet.add(key);
-                }
-                for (String key : keySet) {
-                    String desc = "Object";
+                @Override
+                public void run() {
                     try {
-                        if ((Boolean) completor.getEngine().eval("typeof this." + key
-                                + " === 'function'")) {
-                            key += "(";
-                            desc = "Function";
-                        }
-                    } catch (Exception e) {
-                        Exceptions.printStackTrace(e);
-                    }
-                    if (key.indexOf(lastPart) == 0) {
-                        addCandidate(candidates, key, desc, "(Engine scope)");
+                        matchBindings(bindings, inferredTypes, lastPart, scopeCandidates);
+                    } catch (Throwable t) {
+                        Exceptions.printStackTrace(t);
                     }
                 }
+            });
+        }
+
+        // This will match class names
+        matchClassName(buffer, context.getCursor(), candidates);
+
+        if (scopeTask != null) {
+            scopeTask.waitFinished();
+            for (RhinoCompletionCandidate candidate : scopeCandidates.getCandidates()) {
+                candidates.add(candidate);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Tries to match last part of the input buffer to any name of object or
+     * function in the engine scope
+     * @param bindings The engine scope bindings
+     * @param inferredTypes The types inferred for the variables, by name
+     * @param lastPart The last part of the input buffer
+     * @param candidates the sink of the autocompletion candidates to fill
+     */
+    private void matchBindings(Bindings bindings, Map<String, Class<?>> inferredTypes,
+            String lastPart, RhinoCandidateSink candidates) {
+        Map<String, String> types = NativeResolver.getTypes(bindings);
+        for (Map.Entry<String, String> type : types.entrySet()) {
+            String key = type.getKey();
+            RhinoCompletionCandidate.Kind kind = RhinoCompletionCandidate.Kind.OBJECT;
+            if (type.getValue().equals("function")) {
+                key += "(";
+                kind = RhinoCompletionCandidate.Kind.FUNCTION;
+            }
+            if (key.indexOf(lastPart) == 0) {
+                addCandidate(candidates, key, kind, describe(bindings.get(type.getKey())));
+            }
+        }
+        // The variables not evaluated yet
+        for (Map.Entry<String, Class<?>> inferred : inferredTypes.entrySet()) {
+            String key = inferred.getKey();
+            if (!types.containsKey(key) && key.indexOf(lastPart) == 0) {
+                addCandidate(candidates, key, RhinoCompletionCandidate.Kind.OBJECT,
+                        ClassMetadata.get(inferred.getValue()).getCanonicalName());
+            }
+        }
+    }
+
+    /**
+     * @param value The value of a binding
+     * @return The description of the binding candidate, telling the type of
+     * the elements of an array when they are Java objects
+     */
+    private static String describe(Object value) {
+        if (value != null && value.getClass().getSimpleName().equals("NativeArray")) {
+            try {
+                Class<?> elementType = NativeResolver.getElementType(value);
+                String name = elementType == null ? null
+                        : ClassMetadata.get(elementType).getCanonicalName();
+                if (name != null) {
+                    return "(Engine scope) Array of " + name;
+                }
+            } catch (Exception e) {
+                // Described as any other binding
             }
-            return buffer;
         }
-        return "";
+        return "(Engine scope)";
     }
 }
@@ -13,11 +13,12 @@
 package org.netbeans.modules.jsrhinocontext.rules;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import javax.script.Bindings;
+import java.util.Set;
+import org.netbeans.modules.jsrhinocontext.RhinoCandidateSink;
+import org.netbeans.modules.jsrhinocontext.RhinoCompletionCandidate;
+import org.netbeans.modules.jsrhinocontext.RhinoCompletionContext;
+import org.netbeans.modules.jsrhinocontext.RhinoCompletionOptions;
 import org.netbeans.modules.jsrhinocontext.RhinoCompletor;
 
 /**
@@ -36,148 +37,84 @@ public abstract class RhinoCompletionRule {
     }
     
     /**
-     * The rule match method
-     * @param bufferOffset The part of the buffer that has already been autocompleted
-     * @param buffer The input buffer
-     * @param cursor The current cursor position
-     * @param candidates the current list of autocompletion candidates
-     * @return the matched part of the input buffer
+     * @return The kinds of completion context the rule is run for
      */
-    public abstract String match(String bufferOffset, String buffer,
-            int cursor, List<String> candidates);
+    public abstract Set<RhinoCompletionContext.Kind> getContextKinds();
     
     /**
-     * Complete possible method signatures trying to guess parameter names
+     * The rule match method. The rules of a context kind are run in order
+     * until one of them matches
+     * @param context The completion context
+     * @param candidates the sink of the autocompletion candidates
+     * @return the matched part of the input buffer, or null if the rule does
+     * not apply, so that the next rule is run
+     */
+    public abstract String match(RhinoCompletionContext context,
+            RhinoCandidateSink candidates);
+    
+    /**
+     * Complete possible method signatures trying to guess parameter names.
+     * Each parameter is either the key of a binding whose value can be passed
+     * as the parameter, or the name of its type. Proposals are built one at a
+     * time up to the configured limit, and the one naming all the types comes
+     * last
      * @param methodName The name of the method under question
      * @param params The method parameters
-     * @param candidates The completion candidates list
-     * @param description The description of the candidate
+     * @param candidates The completion candidates sink
+     * @param kind The kind of the candidate
      * @param context the documentation context to add to the candidate
      */
     protected void parameterComplete(String methodName, Class<?>[] params,
-            List<String> candidates, String description, String context) {
-        String candidate = methodName + "(";
-
-        Bindings bindings = completor.getEngineBindings();
-        Collection<String> bindingsKeys = bindings.keySet();
-        // Map each type to a list of objects of the same type from the
-        // bindings, using keys
-        HashMap<String, ArrayList<String>> typeMap = new HashMap<String, ArrayList<String>>();
-        for (String key : bindingsKeys) {
-            if (bindings.get(key) != null) {
-                String typeMapKey = bindings.get(key).getClass().getName();
-                if (typeMap.containsKey(typeMapKey)) {
-                    typeMap.get(typeMapKey).add(key);
-                } else {
-                    ArrayList<String> list = new ArrayList<String>();
-                    list.add(key);
-                    typeMap.put(typeMapKey, list);
-                }
-            }
+            RhinoCandidateSink candidates, RhinoCompletionCandidate.Kind kind, String context) {
+        BindingTypeIndex index = completor.getBindingTypeIndex();
+        // The choices of each parameter, the type name last
+        List<List<String>> choices = new ArrayList<List<String>>(params.length);
+        for (Class<?> param : params) {
+            List<String> keys = index.getKeys(param);
+            List<String> paramChoices = new ArrayList<String>(keys.size() + 1);
+            paramChoices.addAll(keys);
+            paramChoices.add(param.getName());
+            choices.add(paramChoices);
         }
-        ArrayList<String> proposals = new ArrayList<String>();
-        for (int i = 0; i < params.length; i++) {
-            String defaultParam = params[i].getName();
-            candidate = makeCommaSepList(i, candidate);
-
-            String key = params[i].getName();
-            if (typeMap.containsKey(key)) {
-                ArrayList<String> matchingBindKeys = typeMap.get(key);
-                // Add a completion proposal for each matching bindings key
-                for (String bindKey : matchingBindKeys) {
-                    // Update current proposals adding the matched parameter
-                    for (int j = 0; j < proposals.size(); j++) {
-                        String proposal = proposals.get(j);
-                        boolean propCompleted = proposal.split(",").length <= i;
-                        if (propCompleted) {
-                            proposal = makeCommaSepList(i, proposal);
-                            proposal += bindKey;
-                            proposals.set(j, proposal);
-                        }
-                    }
-                    proposals.add(candidate + bindKey);
-                }
-            } else {
-                // Update current proposals adding a default parameter
-                for (int j = 0; j < proposals.size(); j++) {
-                    String proposal = proposals.get(j);
-                    proposal = makeCommaSepList(i, proposal);
-                    proposal += defaultParam;
-                    proposals.set(j, proposal);
+        // Count through the combinations like an odometer, the last parameter
+        // turning fastest, up to the one made of type names only
+        int limit = RhinoCompletionOptions.getParameterProposalLimit();
+        int[] selected = new int[params.length];
+        int proposals = 0;
+        while (true) {
+            StringBuilder proposal = new StringBuilder(methodName).append('(');
+            boolean typeNamesOnly = true;
+            for (int i = 0; i < params.length; i++) {
+                List<String> paramChoices = choices.get(i);
+                if (i > 0) {
+                    proposal.append(", ");
                 }
+                proposal.append(paramChoices.get(selected[i]));
+                typeNamesOnly &= selected[i] == paramChoices.size() - 1;
             }
-            candidate += defaultParam;
-        }
-        // Add default candidate to proposals and fix spacing
-        proposals.add(candidate);
-        for (String proposal : proposals) {
-            proposal += ")";
-            addCandidate(candidates, proposal, description, context);
-        }
-    }
-    
-    
-    /**
-     * Split input buffer into several parts using "." (the dot) as 
-     * delimiter. It is used to identify method calls, object properties, 
-     * etc.
-     * @param buffer The input buffer
-     * @param cursor The current cursor position
-     * @return An array of strings containing the buffer split at each 
-     * delimiter
-     */
-    protected String[] getMatchParts(String buffer, int cursor) {
-        // Starting from "cursor" at the end of the buffer, look backward
-        // and collect a list of identifiers separated by (possibly zero)
-        // dots. Then look up each identifier in turn until getting to the
-        // last, presumably incomplete fragment. Then enumerate all the
-        // properties of the last object and find any that have the
-        // fragment as a prefix and return those for autocompletion.
-        int m = cursor - 1;
-        while (m >= 0) {
-            char c = buffer.charAt(m);
-            if (!Character.isJavaIdentifierPart(c) && c != '.' && c != '(') {
+            proposal.append(')');
+            if (typeNamesOnly || proposals < limit) {
+                addCandidate(candidates, proposal.toString(), kind, context);
+                proposals++;
+            }
+            if (typeNamesOnly) {
                 break;
             }
-            m--;
-        }
-        if (m + 1 >= 0 && cursor >= 0) {
-            String namesAndDots = buffer.substring(m + 1, cursor);
-            String[] names = namesAndDots.split("\\.", -1);
-            ArrayList<String> parts = new ArrayList<String>();
-            for (String part : names) {
-                if (!part.equals("")) {
-                    parts.add(part);
-                }
+            int i = params.length - 1;
+            while (selected[i] == choices.get(i).size() - 1) {
+                selected[i--] = 0;
             }
-            if (namesAndDots.endsWith(".")) {
-                parts.add("");
+            selected[i]++;
+            if (proposals >= limit) {
+                // Jump to the proposal naming the types
+                for (i = 0; i < params.length; i++) {
+                    selected[i] = choices.get(i).size() - 1;
+                }
             }
-            return parts.toArray(new String[parts.size()]);
-        }
-        return new String[]{buffer};
-    }
-        
-    /**
-     * Once the buffer has been divided into parts using {@link getMatchParts()},
-     * it is possible to identify the most significant part, the last, for further
-     * elaborations
-     * @param buffer The input buffer
-     * @param parts The parts of the input buffer
-     * @return The last of the parts of the input buffer
-     * @see RhinoCompletor.getMatchParts
-     */
-    protected String getLastMatchPart(String buffer, String[] parts) {
-        String lastPart = buffer;
-        if (parts.length == 1) {
-            lastPart = parts[0];
-        }
-        if (parts.length > 1) {
-            lastPart = parts[parts.length - 1];
         }
-        return lastPart;
     }
     
+    
     /**
      * Used in a loop, append a comma to the <code>buffer</code>
      * when <code>index</code> is higher than 0
@@ -194,39 +131,41 @@ public abstract class RhinoCompletionRule {
     }
     
     /**
-     * Wrapper function to add candidates to the list including some meta info
-     * @param candidates The candidate list
+     * Wrapper function to add candidates to the sink including some meta info
+     * @param candidates The candidate sink
      * @param element The candidate to add
-     * @param type The description of the type of the lement
+     * @param kind The kind of the element
      * @param context Information about the context of the call
      */
-    protected void addCandidate(List<String> candidates, String element, String type, String context) {
-        String def = element + 
-                RhinoCompletor.FIELD_SEPARATOR + type +
-                RhinoCompletor.FIELD_SEPARATOR + context; 
-        candidates.add(def);
+    protected void addCandidate(RhinoCandidateSink candidates, String element,
+            RhinoCompletionCandidate.Kind kind, String context) {
+        candidates.add(new RhinoCompletionCandidate(element, kind, context));
+    }
+    
+    /**
+     * Tell whether a candidate would be kept by the candidate sink, so that
+     * the candidates that would not are not worked out
+     * @param candidates The candidate sink
+     * @param element The candidate
+     * @param kind The kind of the candidate
+     * @return False if the candidate sink would turn the candidate down
+     */
+    protected boolean isWanted(RhinoCandidateSink candidates, String element,
+            RhinoCompletionCandidate.Kind kind) {
+        return candidates.accepts(element, kind);
     }
     
     /**
      * Wrapper function to load classes by mean of the current class loader
-     * @param className The fully qualified name of the class to load
+     * @param className The fully qualified name of the class to load, or
+     * its simple name. When a simple name is shared by several classes, the
+     * first loadable one in alphabetical order of qualified names is returned
      * @return The class corresponding to the given name
      * @throws ClassNotFoundException  if the <code>className</code> is not
      * resolvable
      */
     protected Class loadClass(String className) throws ClassNotFoundException {
-        try {
-            return Thread.currentThread().getContextClassLoader().loadClass(className);
-        } catch (ClassNotFoundException e) {};
-        
-        for (Iterator i = completor.getJavaNames().iterator(); i.hasNext();) {
-            String candidate = (String) i.next();
-            if (candidate.endsWith("." + className)) {
-                return Thread.currentThread().getContextClassLoader().loadClass(candidate);
-            }
-        }
-        throw new ClassNotFoundException(className);
-        
+        return completor.loadClass(className);
     }
     
 }
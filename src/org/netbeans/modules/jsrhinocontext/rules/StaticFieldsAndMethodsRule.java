@@ -12,10 +12,11 @@
  */
 package org.netbeans.modules.jsrhinocontext.rules;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
-import java.util.List;
+import java.util.EnumSet;
+import java.util.Set;
+import org.netbeans.modules.jsrhinocontext.RhinoCandidateSink;
+import org.netbeans.modules.jsrhinocontext.RhinoCompletionCandidate;
+import org.netbeans.modules.jsrhinocontext.RhinoCompletionContext;
 import org.netbeans.modules.jsrhinocontext.RhinoCompletor;
 
 /**
@@ -29,54 +30,35 @@ public class StaticFieldsAndMethodsRule extends RhinoCompletionRule {
     }
 
     @Override
-    public String match(String bufferOffset, String buffer, int cursor, List<String> candidates) {
-        Object lineObj = completor.getLineObject();
-        if (lineObj == null) {
-            String[] parts = getMatchParts(buffer, cursor);
-            String lastPart = getLastMatchPart(buffer, parts);
-            if (parts.length >= 2
-                    && parts[parts.length - 2].charAt(0) == parts[parts.length - 2].toUpperCase().charAt(0)) {
-                try {
-                    String className = buffer.substring(0,
-                            buffer.lastIndexOf("."));
-                    lineObj = loadClass(className);
-                    // It's important to set the reference object so that other
-                    // rules won't trigger
-                    completor.setLineObject(lineObj);
-                    if (lineObj != null) {
-                        for (Field field : ((Class<?>) lineObj).getFields()) {
-                            if (Modifier.isStatic(field.getModifiers())) {
-                                if (lastPart.equals("")
-                                        || field.getName().startsWith(lastPart)) {
-                                    addCandidate(candidates, className + "." + field.getName(), 
-                                            "Static field", field.toGenericString());
-                                }
-                            }
-                        }
-                        for (Method meth : ((Class<?>) lineObj).getMethods()) {
-                            if (Modifier.isStatic(meth.getModifiers())) {
-                                if (lastPart.equals("")
-                                        || meth.getName().startsWith(lastPart)) {
-                                    Class<?>[] params = meth.getParameterTypes();
-                                    parameterComplete(
-                                            className + "." + meth.getName(),
-                                            params, candidates, "Static method", meth.toGenericString());
-                                }
-                            }
-                        }
-                    }
-                    if (!lastPart.equals("")) {
-                        return className + lastPart;
-                    } else {
-                        return buffer;
-                    }
-                } catch (ClassNotFoundException e) {
-                    // Don't trace exception. This just isn't a static method
-                    // invocation and we only know it by now
-                }
+    public Set<RhinoCompletionContext.Kind> getContextKinds() {
+        return EnumSet.of(RhinoCompletionContext.Kind.STATIC_ACCESS);
+    }
+
+    @Override
+    public String match(RhinoCompletionContext context, RhinoCandidateSink candidates) {
+        String buffer = context.getBuffer();
+        String lastPart = context.getLastPart();
+        try {
+            String className = buffer.substring(0,
+                    buffer.lastIndexOf("."));
+            Class<?> clazz = loadClass(className);
+            ClassMetadata metadata = ClassMetadata.get(clazz);
+            for (ClassMetadata.MemberInfo field : metadata.getStaticFields(lastPart)) {
+                addCandidate(candidates, className + "." + field.getName(),
+                        RhinoCompletionCandidate.Kind.STATIC_FIELD, field.getGenericString());
+            }
+            for (ClassMetadata.MemberInfo meth : metadata.getStaticMethods(lastPart)) {
+                parameterComplete(
+                        className + "." + meth.getName(),
+                        meth.getParameterTypes(), candidates, RhinoCompletionCandidate.Kind.STATIC_METHOD,
+                        meth.getGenericString());
             }
+            return className + "." + lastPart;
+        } catch (ClassNotFoundException e) {
+            // Don't trace exception. This just isn't a static method
+            // invocation and we only know it by now
         }
-        return "";
+        return null;
     }
     
 }
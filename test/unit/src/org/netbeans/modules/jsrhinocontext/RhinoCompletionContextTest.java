@@ -0,0 +1,69 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+
+package org.netbeans.modules.jsrhinocontext;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Adriano
+ */
+public class RhinoCompletionContextTest {
+
+    private static RhinoCompletionContext context(String line) {
+        return new RhinoCompletionContext(line, line.length());
+    }
+
+    @Test
+    public void testClosedArgumentListIsNotAnOpenCall() {
+        RhinoCompletionContext context = context("new java.util.ArrayList().");
+        assertFalse(context.getKind() == RhinoCompletionContext.Kind.CALL_ARGUMENTS);
+        assertNull(context.getCallee());
+    }
+
+    @Test
+    public void testChainFromNewInstance() {
+        RhinoCompletionContext context = context("x = new java.util.ArrayList().iterator().ha");
+        assertEquals(RhinoCompletionContext.Kind.MEMBER_ACCESS, context.getKind());
+        assertEquals("java.util.ArrayList", context.getRootClass());
+        assertEquals("new java.util.ArrayList().iterator().ha", context.getBuffer());
+        assertEquals(3, context.getPartCount());
+        assertEquals("iterator()", context.getQualifier());
+        assertEquals("ha", context.getLastPart());
+    }
+
+    @Test
+    public void testMemberOfNewInstance() {
+        RhinoCompletionContext context = context("new java.util.ArrayList().");
+        assertEquals("java.util.ArrayList", context.getRootClass());
+        assertEquals(2, context.getPartCount());
+        assertEquals("", context.getLastPart());
+    }
+
+    @Test
+    public void testOpenArgumentList() {
+        RhinoCompletionContext context = context("x.add(");
+        assertEquals(RhinoCompletionContext.Kind.CALL_ARGUMENTS, context.getKind());
+        assertEquals("x.add", context.getCallee());
+        assertEquals(0, context.getArgumentIndex());
+    }
+
+    @Test
+    public void testInstantiation() {
+        RhinoCompletionContext context = context("var x = new java.util.Ar");
+        assertEquals(RhinoCompletionContext.Kind.NEW, context.getKind());
+        assertEquals("java.util.Ar", context.getBuffer());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import static org.junit.Assert.*;
+
+/**
+ * @author Adriano
+ */
+public class RhinoEvaluationMonitorTest {
+
+    /**
+     * Evaluate a script in the context a monitor enters
+     * @return True if the monitor stopped the evaluation
+     */
+    private static boolean evaluate(RhinoEvaluationMonitor monitor, String script) {
+        monitor.enter();
+        try {
+            Context cx = Context.getCurrentContext();
+            Scriptable scope = cx.initStandardObjects();
+            cx.evaluateString(scope, script, "test", 1, null);
+            return false;
+        } catch (RhinoEvaluationMonitor.Abort abort) {
+            return true;
+        } finally {
+            monitor.exit();
+        }
+    }
+
+    @Test
+    public void testInstructionBudgetStopsSingleLineLoop() {
+        RhinoEvaluationMonitor monitor = new RhinoEvaluationMonitor(1000000, 0);
+        assertTrue(evaluate(monitor, "var i = 0; while (true) { i++; }"));
+        assertTrue(monitor.getAbortReason(), monitor.getAbortReason().startsWith("Instruction budget"));
+    }
+
+    @Test
+    public void testTimeBudgetStopsSingleLineLoop() {
+        RhinoEvaluationMonitor monitor = new RhinoEvaluationMonitor(0, 200);
+        long start = System.currentTimeMillis();
+        assertTrue(evaluate(monitor, "while (true) {}"));
+        assertTrue(monitor.getAbortReason(), monitor.getAbortReason().startsWith("Time budget"));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testCancelStopsSingleLineLoop() {
+        RhinoEvaluationMonitor monitor = new RhinoEvaluationMonitor();
+        monitor.cancel();
+        assertTrue(evaluate(monitor, "for (;;) { Math.sqrt(2); }"));
+        assertEquals("Evaluation cancelled.", monitor.getAbortReason());
+    }
+
+    @Test
+    public void testScriptWithinBudgetCompletes() {
+        RhinoEvaluationMonitor monitor = new RhinoEvaluationMonitor(1000000, 0);
+        assertFalse(evaluate(monitor, "var s = 0; for (var i = 0; i < 100; i++) { s += i; }"));
+        assertFalse(monitor.isAborted());
+    }
+
+    @Test
+    public void testContextLeftAfterExit() {
+        evaluate(new RhinoEvaluationMonitor(1000, 0), "while (true) {}");
+        assertNull(Context.getCurrentContext());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *                 Sun Public License Notice
+ *
+ * The contents of this file are subject to the Sun Public License
+ * Version 1.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://www.sun.com/
+ *
+ * The Original Code is NetBeans. The Initial Developer of the Original
+ * Code is Sun Microsystems, Inc. Portions Copyright 1997-2005 Sun
+ * Microsystems, Inc. All Rights Reserved.
+ */
+
+package org.netbeans.modules.jsrhinocontext;
+
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Adriano
+ */
+public class RhinoScriptSegmentTest {
+
+    @Test
+    public void testIfElseStaysTogether() {
+        String script = "if (x) a = 1;\nelse a = 2;";
+        List<RhinoScriptSegment> segments = RhinoScriptSegment.split(script);
+        assertEquals(1, segments.size());
+        assertEquals(script, segments.get(0).getText());
+    }
+
+    @Test
+    public void testDoWhileStaysTogether() {
+        String script = "do x++; while (x<3);";
+        List<RhinoScriptSegment> segments = RhinoScriptSegment.split(script);
+        assertEquals(1, segments.size());
+        assertEquals(script, segments.get(0).getText());
+    }
+
+    @Test
+    public void testFunctionDeclarationIsHoisted() {
+        List<RhinoScriptSegment> segments = RhinoScriptSegment.split(
+                "f();\nfunction f(){ return 1; }\nvar g = function(){};");
+        assertEquals(3, segments.size());
+        assertFalse(segments.get(0).isDeclaration());
+        assertTrue(segments.get(1).isDeclaration());
+        assertTrue(segments.get(1).getText().trim().startsWith("function f()"));
+        assertFalse(segments.get(2).isDeclaration());
+    }
+
+    @Test
+    public void testCompleteStatementsAreSplit() {
+        List<RhinoScriptSegment> segments = RhinoScriptSegment.split(
+                "var a = 1;\nif (a) { a++; }\nvar b = a;");
+        assertEquals(3, segments.size());
+        assertEquals("\nif (a) { a++; }\n", segments.get(1).getText());
+        assertEquals("var b = a;", segments.get(2).getText());
+    }
+
+    @Test
+    public void testSyntaxErrorDoesNotSpreadToTheEnd() {
+        List<RhinoScriptSegment> segments = RhinoScriptSegment.split("a = ;\nb = 1;\nc = 2;");
+        assertEquals(2, segments.size());
+        assertEquals("\nc = 2;", segments.get(1).getText());
+    }
+}
+